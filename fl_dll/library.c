@@ -46,6 +46,12 @@ void readD(double *val, int set)
     *val = (double)set;
 }
 
+void scaleArrD(double *arr, const int count, const double scale)
+{
+    for (int n = 0; n < count; ++n)
+        arr[n] *= scale;
+}
+
 float sumArrF(const float *arr, const int count)
 {
     float r = 0;
@@ -147,6 +153,36 @@ double sumMatDPtrPtr(const int rows, const int cols, const double** mat)
     return total;
 }
 
+double sumTensorD(int frames, int rows, int cols, double tensor[frames][rows][cols])
+{
+    double total = 0;
+
+    for (int ff = 0; ff < frames; ++ff)
+    {
+        for (int yy = 0; yy < rows; ++yy)
+        {
+            for (int xx = 0; xx < cols; ++xx)
+                total += tensor[ff][yy][xx];
+        }
+    }
+    return total;
+}
+
+double sumJaggedDPtrPtr(const int frames, const int* rows, const int* cols, const double*** tensor)
+{
+    double total = 0;
+
+    for (int ff = 0; ff < frames; ++ff)
+    {
+        for (int yy = 0; yy < rows[ff]; ++yy)
+        {
+            for (int xx = 0; xx < cols[yy]; ++xx)
+                total += tensor[ff][yy][xx];
+        }
+    }
+    return total;
+}
+
 
 float sumMatF(int rows, int cols, float mat[rows][cols])
 {
@@ -281,14 +317,15 @@ int cstringLength(const char* string)
 
 char* mallocString(const char* origString)
 {
-    char* ret = malloc(strlen(origString) * sizeof(char));
+    char* ret = malloc((strlen(origString) + 1) * sizeof(char));
     strcpy(ret, origString);
     return ret;
 }
 
 double* mallocDoubles(const int count)
 {
-    double* ret = malloc(count *sizeof(double ));
+    // Never NULL, so an empty array can be returned
+    double* ret = malloc(count > 0 ? count * sizeof(double) : sizeof(double));
 
     for (int n = 0; n < count; ++n)
         ret[n] = (double)n;
@@ -312,6 +349,64 @@ double passStruct(struct PassingData* data)
     return ret;
 }
 
+double passStructArray(struct PassingData* data, int count)
+{
+    double ret = 0;
+    for (int n = 0; n < count; ++n)
+    {
+        ret += passStruct(&data[n]);
+        data[n].s_int += n;
+    }
+
+    return ret;
+}
+
+double passShared(struct SharedPassing* shared)
+{
+    double ret = 0;
+    if (shared->first != NULL)
+    {
+        ret += passStruct(shared->first);
+        shared->first->s_int += 1;
+    }
+    if (shared->second != NULL)
+    {
+        ret += passStruct(shared->second);
+        shared->second->s_int += 1;
+    }
+
+    return ret;
+}
+
+int sumNodes(struct Node* node)
+{
+    int ret = 0;
+    for (; node != NULL; node = node->next)
+        ret += node->v;
+
+    return ret;
+}
+
+double aliasFirstMember(struct AliasPassing* alias)
+{
+    // first points at the start of outer, both pointers have the same address
+    alias->first = &alias->outer->inner;
+    alias->first->s_int += 1;
+    return alias->outer->extra;
+}
+
+double scalePolynomial(struct Polynomial* poly, double scale)
+{
+    double ret = 0;
+    for (int n = 0; n < poly->n; ++n)
+    {
+        poly->coeffs[n] *= scale;
+        ret += poly->coeffs[n];
+    }
+
+    return ret;
+}
+
 double passComplex(struct ComplexPassing* complex)
 {
     double ret = passStruct(&complex->s_passingData);
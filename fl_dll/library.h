@@ -16,8 +16,11 @@ extern double sumD(double d1, double d2);
 extern double sumArrD(const double *arr, int count);
 extern double sumArrDD(const double *arr, const double *arr2, int count);
 extern void readD(double *v, int set);
+extern void scaleArrD(double *arr, int count, double scale);
 extern double sumMatD(int rows, int cols, double mat[rows][cols]);
 extern double sumMatDPtrPtr(int rows, int cols, const double** mat);
+extern double sumTensorD(int frames, int rows, int cols, double tensor[frames][rows][cols]);
+extern double sumJaggedDPtrPtr(int frames, const int* rows, const int* cols, const double*** tensor);
 
 extern float sumArrF(const float *arr, int count);
 extern void readF(float *val, float set);
@@ -64,4 +67,40 @@ struct ComplexPassing
     struct PassingData* s_ptrPassingData;
     char* s_string;
 };
+
+struct Polynomial
+{
+    double coeffs[16];
+    int n;
+};
+
+struct SharedPassing
+{
+    struct PassingData* first;
+    struct PassingData* second;
+};
+
+struct Node
+{
+    int v;
+    struct Node* next;
+};
+
+struct Wrapped
+{
+    struct PassingData inner;
+    double extra;
+};
+
+struct AliasPassing
+{
+    struct Wrapped* outer;
+    struct PassingData* first;
+};
+
+extern double passStructArray(struct PassingData* data, int count);
+extern double passShared(struct SharedPassing* shared);
+extern int sumNodes(struct Node* node);
+extern double aliasFirstMember(struct AliasPassing* alias);
+extern double scalePolynomial(struct Polynomial* poly, double scale);
 #endif //FL_DLL_LIBRARY_H
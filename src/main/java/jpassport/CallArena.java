@@ -0,0 +1,268 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.NativeScope;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * The native memory used to pass arguments during a call. Every thread has one arena that is reused
+ * by all of its calls: memory is handed out by moving an offset through a block of native memory and
+ * close() moves the offset back to the start. The block only grows when a call needs more memory than it
+ * has, after that calls with arrays, Strings or Records do not allocate native memory.
+ *
+ * Generated classes call open() at the start of a method and close() once the results have been read back.
+ * The static methods they use are passed to them as MethodHandles in their class data. Only open() is public,
+ * so that code that calls the converters in Utils itself can use the arena too. The arena is a NativeScope so
+ * it can be handed to those converters, which only allocate from it.
+ *
+ * The arena also remembers the Records stored and read during the call. A Record that is pointed to by more
+ * than one @Ptr member is copied into native memory once, and a struct that more than one pointer points
+ * to is read into one Record.
+ */
+public final class CallArena implements NativeScope
+{
+    private static final long INITIAL_SIZE = 4096;
+    // The alignment of the largest C primitive
+    private static final long MAX_ALIGNMENT = 8;
+    private static final Cleaner Arena_Cleaner = Cleaner.create();
+    private static final ThreadLocal<CallArena> Arenas = ThreadLocal.withInitial(() -> new CallArena(true));
+    // Marks a struct that is being read, finding it again means the pointers go round in a circle
+    private static final Object Reading = new Object();
+
+    private final Thread m_owner = Thread.currentThread();
+    private MemorySegment m_block;
+    private long m_offset = 0;
+    private boolean m_inUse = false;
+    // Blocks that were too small for the current call, they are freed when the call ends
+    private final List<MemorySegment> m_retired = new ArrayList<>();
+    // false for an arena made for a call that is made while the thread's arena is in use
+    private final boolean m_pooled;
+    private final Map<Object, MemorySegment> m_stored = new IdentityHashMap<>();
+    private final Map<ReadKey, Object> m_read = new HashMap<>();
+
+    // A struct and its first member have the same address, so the Records read are kept by address and type
+    private record ReadKey(long address, Class<?> type) {}
+
+    // Scopes that were in use when they were dropped, they are closed when the call ends
+    private final List<NativeScope> m_retiredScopes = new ArrayList<>();
+
+    private CallArena(boolean pooled)
+    {
+        this(pooled, INITIAL_SIZE);
+    }
+
+    private CallArena(boolean pooled, long size)
+    {
+        m_pooled = pooled;
+        m_block = allocateBlock(size);
+    }
+
+    /**
+     * @param size The size of the first block of memory.
+     * @return An arena that isn't shared with calls, it frees its memory when it is closed.
+     */
+    static CallArena create(long size)
+    {
+        CallArena arena = new CallArena(false, size);
+        arena.m_inUse = true;
+        return arena;
+    }
+
+    /**
+     * @return The arena of this thread. If the arena is already being used, because a call is made while the
+     * arguments of another call are still in use, a new arena is returned instead.
+     */
+    public static NativeScope open()
+    {
+        CallArena arena = Arenas.get();
+        if (arena.m_inUse)
+        {
+            arena = new CallArena(false);
+            arena.m_inUse = true;
+            return arena;
+        }
+
+        arena.m_inUse = true;
+        return arena;
+    }
+
+    /**
+     * NativeScope uses the size as the alignment, which fails for sizes that aren't a power of two and wastes
+     * memory for large ones. Nothing passed to C needs more than MAX_ALIGNMENT, so memory is aligned to the
+     * largest power of two in the size up to that.
+     */
+    @Override
+    public MemorySegment allocate(long bytesSize)
+    {
+        return allocate(bytesSize, Math.min(Math.max(Long.lowestOneBit(bytesSize), 1), MAX_ALIGNMENT));
+    }
+
+    @Override
+    public MemorySegment allocate(long bytesSize, long bytesAlignment)
+    {
+        if (bytesSize < 0 || bytesAlignment <= 0 || (bytesAlignment & (bytesAlignment - 1)) != 0)
+            throw new IllegalArgumentException("Invalid allocation size " + bytesSize + " or alignment " + bytesAlignment);
+
+        long start = align(m_offset, bytesAlignment);
+        if (start + bytesSize > m_block.byteSize())
+        {
+            // Memory already handed out stays valid until close(), so the old block can't be freed yet
+            m_retired.add(m_block);
+            m_block = allocateBlock(Math.max(m_block.byteSize() * 2, bytesSize + bytesAlignment));
+            start = align(0, bytesAlignment);
+        }
+
+        m_offset = start + bytesSize;
+        return m_block.asSlice(start, bytesSize);
+    }
+
+    @Override
+    public void close()
+    {
+        for (MemorySegment retired : m_retired)
+            retired.close();
+        m_retired.clear();
+        for (NativeScope retired : m_retiredScopes)
+            retired.close();
+        m_retiredScopes.clear();
+
+        if (!m_stored.isEmpty())
+            m_stored.clear();
+        if (!m_read.isEmpty())
+            m_read.clear();
+
+        m_offset = 0;
+        m_inUse = false;
+        if (!m_pooled)
+            m_block.close();
+    }
+
+    /**
+     * Close a scope once the call is over, its memory may already have been passed to the library.
+     *
+     * @param scope The scope of the call.
+     * @param retired The scope to close.
+     */
+    static void retire(NativeScope scope, NativeScope retired)
+    {
+        if (scope instanceof CallArena arena && arena.m_inUse)
+            arena.m_retiredScopes.add(retired);
+        else
+            retired.close();
+    }
+
+    /**
+     * @param scope The scope of the call.
+     * @param record A Record that is pointed to by a struct.
+     * @return The native copy of the Record if it has already been stored during this call, otherwise null.
+     */
+    static MemorySegment findStored(NativeScope scope, Object record)
+    {
+        return scope instanceof CallArena arena ? arena.m_stored.get(record) : null;
+    }
+
+    /**
+     * Remember the native copy of a Record so that other pointers to the same Record use it.
+     *
+     * @return The native copy.
+     */
+    static MemorySegment addStored(NativeScope scope, Object record, MemorySegment segment)
+    {
+        if (scope instanceof CallArena arena)
+            arena.m_stored.put(record, segment);
+        return segment;
+    }
+
+    /**
+     * @param scope The scope of the call.
+     * @param address The address of a struct that is pointed to by another struct.
+     * @param type The Record type the struct is read into.
+     * @return The Record of the type read from the address during this call, otherwise null.
+     */
+    static Object findRead(NativeScope scope, MemoryAddress address, Class<?> type)
+    {
+        if (!(scope instanceof CallArena arena))
+            return null;
+
+        Object record = arena.m_read.get(new ReadKey(address.toRawLongValue(), type));
+        if (record == Reading)
+            throw new PassportException("The pointers of a struct form a cycle, which can't be read into Records. Use a Struct view.");
+        return record;
+    }
+
+    /**
+     * Mark the struct at the address as being read, this finds pointers that go round in a circle.
+     */
+    static void startRead(NativeScope scope, MemoryAddress address, Class<?> type)
+    {
+        if (scope instanceof CallArena arena)
+            arena.m_read.put(new ReadKey(address.toRawLongValue(), type), Reading);
+    }
+
+    /**
+     * Remember the Record read from an address so that other pointers to the same address and type get the same Record.
+     *
+     * @return The Record.
+     */
+    static Object addRead(NativeScope scope, MemoryAddress address, Class<?> type, Object record)
+    {
+        if (scope instanceof CallArena arena)
+            arena.m_read.put(new ReadKey(address.toRawLongValue(), type), record);
+        return record;
+    }
+
+    @Override
+    public OptionalLong byteSize()
+    {
+        return OptionalLong.empty();
+    }
+
+    @Override
+    public Thread ownerThread()
+    {
+        return m_owner;
+    }
+
+    @Override
+    public long allocatedBytes()
+    {
+        long allocated = m_offset;
+        for (MemorySegment retired : m_retired)
+            allocated += retired.byteSize();
+        return allocated;
+    }
+
+    /**
+     * @return The first offset in the block at or after offset that is aligned in memory.
+     */
+    private long align(long offset, long alignment)
+    {
+        long address = m_block.address().toRawLongValue() + offset;
+        return offset + (((address + alignment - 1) & -alignment) - address);
+    }
+
+    private static MemorySegment allocateBlock(long bytes)
+    {
+        // The arena lives as long as its thread, the cleaner frees the block once the thread is gone.
+        return MemorySegment.allocateNative(bytes, 16).registerCleaner(Arena_Cleaner);
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.GroupLayout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * A cache of generated classes on disk. Generated classes are stored under a hash of everything that
+ * goes into them: the interface methods with their annotations, the Records and their memory layouts
+ * (including the padding resolved for this platform) and the JPassport classes that write the code.
+ * If any of those change the hash changes and the class is written again.
+ *
+ * The cache is only used if the system property jpassport.cache.home is set. Only point it at a folder that
+ * you trust, the classes in it are loaded without further checks.
+ */
+class ClassCache
+{
+    // The classes that decide what the generated code looks like or that the generated code calls.
+    private static final Class<?>[] GENERATOR_CLASSES = {ClassWriter.class, ClassFileWriter.class, Utils.class, CallArena.class, RecordCache.class};
+
+    private static byte[] generatorHash = null;
+
+    /**
+     * Build the cache key for a class.
+     *
+     * @param interfaceClass The interface being implemented.
+     * @param methods The interface methods being implemented.
+     * @param layouts The Records used by the interface and their memory layouts.
+     * @return The cache key, or null if the cache is not enabled.
+     */
+    static String getKey(Class<?> interfaceClass, Collection<Method> methods, Map<Class, GroupLayout> layouts)
+    {
+        if (Utils.getCacheFolder() == null)
+            return null;
+
+        StringBuilder shape = new StringBuilder();
+        shape.append(Runtime.version()).append('\n');
+        shape.append(interfaceClass.getName()).append('\n');
+
+        methods.stream().sorted(Comparator.comparing(Method::toGenericString)).forEach(m -> {
+            shape.append(m.toGenericString()).append('\n');
+            Arrays.stream(m.getAnnotations()).sorted(Comparator.comparing(a -> a.annotationType().getName()))
+                    .forEach(a -> shape.append(a).append('\n'));
+            for (var annotations : m.getParameterAnnotations())
+                shape.append(Arrays.toString(annotations)).append('\n');
+        });
+
+        layouts.entrySet().stream().sorted(Comparator.comparing(e -> e.getKey().getName())).forEach(e -> {
+            shape.append(e.getKey().getName()).append('\n');
+            for (Field f : e.getKey().getDeclaredFields())
+                shape.append(f.getType().getName()).append(' ').append(f.getName()).append(' ')
+                        .append(Arrays.toString(f.getAnnotations())).append('\n');
+            shape.append(e.getValue()).append('\n');
+        });
+
+        MessageDigest digest = newDigest();
+        digest.update(getGeneratorHash());
+        digest.update(shape.toString().getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param key The key from getKey()
+     * @return The class file stored under the key, or null if there isn't one.
+     */
+    static byte[] find(String key)
+    {
+        Path classFile = Utils.getCacheFolder().resolve(key + ".class");
+        if (!Files.exists(classFile))
+            return null;
+
+        try {
+            return Files.readAllBytes(classFile);
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Store a class file in the cache. A failure to write the cache is not an error, the class
+     * will just be built again next time.
+     *
+     * @param key The key from getKey()
+     * @param classBytes The class file.
+     */
+    static void store(String key, byte[] classBytes)
+    {
+        Path folder = Utils.getCacheFolder();
+        Path temp = null;
+        try {
+            Files.createDirectories(folder);
+            // Write to a temporary file first so that no other JVM can read a partial class file
+            temp = Files.createTempFile(folder, key, ".tmp");
+            Files.write(temp, classBytes);
+            Files.move(temp, folder.resolve(key + ".class"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex) {
+            // The class isn't cached, don't leave the partial file behind
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path file)
+    {
+        if (file == null)
+            return;
+
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException ex) {
+            // Nothing more can be done, the file is only a few bytes in the cache folder
+        }
+    }
+
+    /**
+     * @return A hash of the class files of the JPassport classes that write the generated code.
+     */
+    private static synchronized byte[] getGeneratorHash()
+    {
+        if (generatorHash == null)
+        {
+            MessageDigest digest = newDigest();
+            for (Class<?> c : GENERATOR_CLASSES)
+            {
+                try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+                    if (in != null)
+                        digest.update(in.readAllBytes());
+                }
+                catch (IOException ex) {
+                    throw new PassportException("Could not read " + c.getName() + ": " + ex.getMessage());
+                }
+            }
+            generatorHash = digest.digest();
+        }
+        return generatorHash;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new PassportException(ex.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
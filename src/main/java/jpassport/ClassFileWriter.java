@@ -0,0 +1,864 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small writer for the Java class file format. It supports only what ClassWriter needs to generate
+ * an implementation of a Passport interface: fields, methods, straight line code, simple branches and
+ * exception handlers. Stack map frames are not computed, the caller has to declare a frame at every
+ * branch target and exception handler with {@link Code#frame(List, List)}.
+ */
+class ClassFileWriter
+{
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+    static final int ACC_SYNTHETIC = 0x1000;
+
+    // Java 16
+    private static final int CLASS_VERSION = 60;
+
+    private final ConstantPool m_pool = new ConstantPool();
+    private final ByteArrayOutputStream m_fields = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream m_methods = new ByteArrayOutputStream();
+    private final List<Code> m_openCode = new ArrayList<>();
+    private final int m_thisClass;
+    private final int m_superClass;
+    private final int[] m_interfaces;
+    private final String m_className;
+    private int m_fieldCount = 0;
+    private int m_methodCount = 0;
+
+    /**
+     * @param className The internal name (a/b/C) of the class to write.
+     * @param superName The internal name of the super class.
+     * @param interfaces The internal names of all implemented interfaces.
+     */
+    ClassFileWriter(String className, String superName, String... interfaces)
+    {
+        m_className = className;
+        m_thisClass = m_pool.classRef(className);
+        m_superClass = m_pool.classRef(superName);
+        m_interfaces = new int[interfaces.length];
+        for (int n = 0; n < interfaces.length; ++n)
+            m_interfaces[n] = m_pool.classRef(interfaces[n]);
+    }
+
+    String getClassName()
+    {
+        return m_className;
+    }
+
+    void addField(int access, String name, String descriptor)
+    {
+        DataOutputStream out = new DataOutputStream(m_fields);
+        try {
+            out.writeShort(access);
+            out.writeShort(m_pool.utf8(name));
+            out.writeShort(m_pool.utf8(descriptor));
+            out.writeShort(0);
+        }
+        catch (IOException ex) {
+            throw new PassportException(ex.getMessage());
+        }
+        ++m_fieldCount;
+    }
+
+    /**
+     * Start writing a method. The method is added to the class when {@link Code#end()} is called.
+     *
+     * @param access The access flags of the method.
+     * @param name The method name.
+     * @param descriptor The method descriptor.
+     * @return The object used to write the byte code of the method.
+     */
+    Code addMethod(int access, String name, String descriptor)
+    {
+        Code code = new Code(access, name, descriptor);
+        m_openCode.add(code);
+        return code;
+    }
+
+    byte[] toByteArray()
+    {
+        if (!m_openCode.isEmpty())
+            throw new PassportException("Method " + m_openCode.get(0).m_name + " was never finished");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            m_pool.write(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+            out.writeShort(m_thisClass);
+            out.writeShort(m_superClass);
+            out.writeShort(m_interfaces.length);
+            for (int i : m_interfaces)
+                out.writeShort(i);
+            out.writeShort(m_fieldCount);
+            m_fields.writeTo(out);
+            out.writeShort(m_methodCount);
+            m_methods.writeTo(out);
+            out.writeShort(0);
+        }
+        catch (IOException ex) {
+            throw new PassportException(ex.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param c A class
+     * @return The internal name of the class, ex java/lang/String
+     */
+    static String internalName(Class<?> c)
+    {
+        if (c.isArray())
+            return c.descriptorString();
+        return c.getName().replace('.', '/');
+    }
+
+    static String methodDescriptor(Class<?> ret, Class<?>... params)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> p : params)
+            sb.append(p.descriptorString());
+        return sb.append(')').append(ret.descriptorString()).toString();
+    }
+
+    /**
+     * @return The number of local variable slots a value of the given descriptor needs.
+     */
+    private static int slotSize(char descriptor)
+    {
+        return switch (descriptor) {
+            case 'V' -> 0;
+            case 'J', 'D' -> 2;
+            default -> 1;
+        };
+    }
+
+    /**
+     * @return The number of stack slots for the arguments of the method descriptor.
+     */
+    private static int argumentSlots(String methodDescriptor)
+    {
+        int slots = 0;
+        int n = 1;
+        while (methodDescriptor.charAt(n) != ')')
+        {
+            char c = methodDescriptor.charAt(n);
+            slots += slotSize(c);
+            n = skipType(methodDescriptor, n);
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String methodDescriptor)
+    {
+        return slotSize(methodDescriptor.charAt(methodDescriptor.indexOf(')') + 1));
+    }
+
+    private static int skipType(String descriptor, int n)
+    {
+        while (descriptor.charAt(n) == '[')
+            ++n;
+        if (descriptor.charAt(n) == 'L')
+            n = descriptor.indexOf(';', n);
+        return n + 1;
+    }
+
+    /**
+     * A jump target or the start/end of a protected range inside of a method.
+     */
+    static class Label
+    {
+        private int m_position = -1;
+        private final List<Integer> m_fixups = new ArrayList<>();
+    }
+
+    private record Handler(Label start, Label end, Label handler, int type) {}
+
+    /**
+     * Writes the byte code of a single method.
+     */
+    class Code
+    {
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        private final List<Handler> m_exceptions = new ArrayList<>();
+        private final ByteArrayOutputStream m_frames = new ByteArrayOutputStream();
+        private final List<Label> m_labels = new ArrayList<>();
+        private final int m_access;
+        private final String m_name;
+        private final String m_descriptor;
+        private int m_frameCount = 0;
+        private int m_lastFrame = -1;
+        private int m_stack = 0;
+        private int m_maxStack = 0;
+        private int m_maxLocals;
+
+        private Code(int access, String name, String descriptor)
+        {
+            m_access = access;
+            m_name = name;
+            m_descriptor = descriptor;
+            m_maxLocals = argumentSlots(descriptor) + ((access & ACC_STATIC) == 0 ? 1 : 0);
+        }
+
+        /**
+         * Reserve a new local variable slot.
+         * @param type The type that will be stored in the slot.
+         * @return The slot index.
+         */
+        int newLocal(Class<?> type)
+        {
+            int slot = m_maxLocals;
+            m_maxLocals += slotSize(type.descriptorString().charAt(0));
+            return slot;
+        }
+
+        /**
+         * @param paramIndex The zero based index of a method parameter
+         * @return The local variable slot of the parameter.
+         */
+        int paramSlot(int paramIndex)
+        {
+            int slot = (m_access & ACC_STATIC) == 0 ? 1 : 0;
+            int n = 1;
+            for (int p = 0; p < paramIndex; ++p)
+            {
+                slot += slotSize(m_descriptor.charAt(n));
+                n = skipType(m_descriptor, n);
+            }
+            return slot;
+        }
+
+        private void stack(int delta)
+        {
+            m_stack += delta;
+            if (m_stack > m_maxStack)
+                m_maxStack = m_stack;
+        }
+
+        private void op(int opcode)
+        {
+            m_bytes.write(opcode);
+        }
+
+        private void u1(int v)
+        {
+            m_bytes.write(v & 0xFF);
+        }
+
+        private void u2(int v)
+        {
+            m_bytes.write((v >> 8) & 0xFF);
+            m_bytes.write(v & 0xFF);
+        }
+
+        private void localOp(int opcode, int slot)
+        {
+            if (slot > 0xFF)
+            {
+                op(0xC4); //wide
+                op(opcode);
+                u2(slot);
+            }
+            else
+            {
+                op(opcode);
+                u1(slot);
+            }
+        }
+
+        /**
+         * Push a local variable of the given type on to the stack.
+         */
+        Code load(Class<?> type, int slot)
+        {
+            if (!type.isPrimitive())
+                localOp(0x19, slot);   // aload
+            else if (long.class.equals(type))
+                localOp(0x16, slot);   // lload
+            else if (double.class.equals(type))
+                localOp(0x18, slot);   // dload
+            else if (float.class.equals(type))
+                localOp(0x17, slot);   // fload
+            else
+                localOp(0x15, slot);   // iload
+            stack(slotSize(type.descriptorString().charAt(0)));
+            return this;
+        }
+
+        /**
+         * Pop the top of the stack into a local variable of the given type.
+         */
+        Code store(Class<?> type, int slot)
+        {
+            if (!type.isPrimitive())
+                localOp(0x3A, slot);   // astore
+            else if (long.class.equals(type))
+                localOp(0x37, slot);   // lstore
+            else if (double.class.equals(type))
+                localOp(0x39, slot);   // dstore
+            else if (float.class.equals(type))
+                localOp(0x38, slot);   // fstore
+            else
+                localOp(0x36, slot);   // istore
+            stack(-slotSize(type.descriptorString().charAt(0)));
+            return this;
+        }
+
+        /**
+         * Return the top of the stack (or nothing for void) from the method.
+         */
+        Code returnValue(Class<?> type)
+        {
+            if (void.class.equals(type))
+                op(0xB1);
+            else if (!type.isPrimitive())
+                op(0xB0);
+            else if (long.class.equals(type))
+                op(0xAD);
+            else if (double.class.equals(type))
+                op(0xAF);
+            else if (float.class.equals(type))
+                op(0xAE);
+            else
+                op(0xAC);
+            m_stack = 0;
+            return this;
+        }
+
+        Code iconst(int value)
+        {
+            if (value >= -1 && value <= 5)
+                op(0x03 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            {
+                op(0x10); // bipush
+                u1(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            {
+                op(0x11); // sipush
+                u2(value);
+            }
+            else
+            {
+                op(0x13); // ldc_w
+                u2(m_pool.integer(value));
+            }
+            stack(1);
+            return this;
+        }
+
+        Code lconst(long value)
+        {
+            if (value == 0 || value == 1)
+                op(0x09 + (int)value);
+            else
+            {
+                op(0x14); // ldc2_w
+                u2(m_pool.longValue(value));
+            }
+            stack(2);
+            return this;
+        }
+
+        Code ldc(String value)
+        {
+            op(0x13); // ldc_w
+            u2(m_pool.string(value));
+            stack(1);
+            return this;
+        }
+
+        /**
+         * Push a Class constant.
+         *
+         * @param className The internal name of the class.
+         */
+        Code ldcClass(String className)
+        {
+            op(0x13); // ldc_w
+            u2(m_pool.classRef(className));
+            stack(1);
+            return this;
+        }
+
+        Code aconstNull()
+        {
+            op(0x01);
+            stack(1);
+            return this;
+        }
+
+        Code dup()
+        {
+            op(0x59);
+            stack(1);
+            return this;
+        }
+
+        Code swap()
+        {
+            op(0x5F);
+            return this;
+        }
+
+        Code pop()
+        {
+            op(0x57);
+            stack(-1);
+            return this;
+        }
+
+        Code athrow()
+        {
+            op(0xBF);
+            m_stack = 0;
+            return this;
+        }
+
+        Code newObject(String className)
+        {
+            op(0xBB);
+            u2(m_pool.classRef(className));
+            stack(1);
+            return this;
+        }
+
+        Code checkcast(String className)
+        {
+            op(0xC0);
+            u2(m_pool.classRef(className));
+            return this;
+        }
+
+        Code anewarray(String className)
+        {
+            op(0xBD);
+            u2(m_pool.classRef(className));
+            return this;
+        }
+
+        Code aaload()
+        {
+            op(0x32);
+            stack(-1);
+            return this;
+        }
+
+        Code aastore()
+        {
+            op(0x53);
+            stack(-3);
+            return this;
+        }
+
+        Code arraylength()
+        {
+            op(0xBE);
+            return this;
+        }
+
+        Code i2l()
+        {
+            op(0x85);
+            stack(1);
+            return this;
+        }
+
+        Code lmul()
+        {
+            op(0x69);
+            stack(-2);
+            return this;
+        }
+
+        /**
+         * Add a constant to an int local variable.
+         */
+        Code iinc(int slot, int delta)
+        {
+            if (slot > 0xFF || delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE)
+            {
+                op(0xC4); //wide
+                op(0x84);
+                u2(slot);
+                u2(delta);
+            }
+            else
+            {
+                op(0x84);
+                u1(slot);
+                u1(delta);
+            }
+            return this;
+        }
+
+        Code getfield(String owner, String name, String descriptor)
+        {
+            op(0xB4);
+            u2(m_pool.memberRef(9, owner, name, descriptor));
+            stack(slotSize(descriptor.charAt(0)) - 1);
+            return this;
+        }
+
+        Code putfield(String owner, String name, String descriptor)
+        {
+            op(0xB5);
+            u2(m_pool.memberRef(9, owner, name, descriptor));
+            stack(-slotSize(descriptor.charAt(0)) - 1);
+            return this;
+        }
+
+        Code getstatic(String owner, String name, String descriptor)
+        {
+            op(0xB2);
+            u2(m_pool.memberRef(9, owner, name, descriptor));
+            stack(slotSize(descriptor.charAt(0)));
+            return this;
+        }
+
+        Code putstatic(String owner, String name, String descriptor)
+        {
+            op(0xB3);
+            u2(m_pool.memberRef(9, owner, name, descriptor));
+            stack(-slotSize(descriptor.charAt(0)));
+            return this;
+        }
+
+        Code invokevirtual(String owner, String name, String descriptor)
+        {
+            op(0xB6);
+            u2(m_pool.memberRef(10, owner, name, descriptor));
+            stack(returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+            return this;
+        }
+
+        Code invokespecial(String owner, String name, String descriptor)
+        {
+            op(0xB7);
+            u2(m_pool.memberRef(10, owner, name, descriptor));
+            stack(returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+            return this;
+        }
+
+        Code invokestatic(String owner, String name, String descriptor, boolean isInterface)
+        {
+            op(0xB8);
+            u2(m_pool.memberRef(isInterface ? 11 : 10, owner, name, descriptor));
+            stack(returnSlots(descriptor) - argumentSlots(descriptor));
+            return this;
+        }
+
+        Code invokeinterface(String owner, String name, String descriptor)
+        {
+            op(0xB9);
+            u2(m_pool.memberRef(11, owner, name, descriptor));
+            int args = argumentSlots(descriptor) + 1;
+            u1(args);
+            u1(0);
+            stack(returnSlots(descriptor) - args);
+            return this;
+        }
+
+        private Code jump(int opcode, Label target, int pop)
+        {
+            int at = m_bytes.size();
+            op(opcode);
+            target.m_fixups.add(at);
+            u2(0);
+            stack(-pop);
+            if (!m_labels.contains(target))
+                m_labels.add(target);
+            return this;
+        }
+
+        Code goTo(Label target)
+        {
+            return jump(0xA7, target, 0);
+        }
+
+        Code ifnull(Label target)
+        {
+            return jump(0xC6, target, 1);
+        }
+
+        Code ifnonnull(Label target)
+        {
+            return jump(0xC7, target, 1);
+        }
+
+        Code ifeq(Label target)
+        {
+            return jump(0x99, target, 1);
+        }
+
+        Code ifne(Label target)
+        {
+            return jump(0x9A, target, 1);
+        }
+
+        Code ifIcmpge(Label target)
+        {
+            return jump(0xA2, target, 2);
+        }
+
+        /**
+         * Bind a label to the current position in the code.
+         */
+        Code mark(Label label)
+        {
+            label.m_position = m_bytes.size();
+            if (!m_labels.contains(label))
+                m_labels.add(label);
+            return this;
+        }
+
+        /**
+         * Declare the stack map frame at the current position. This must be done at every jump target
+         * and at the start of every exception handler.
+         *
+         * @param locals The descriptors of the local variables, by slot order. Long and double take one entry,
+         *               null marks an unused slot.
+         * @param stack The descriptors of the values on the stack.
+         */
+        Code frame(List<String> locals, List<String> stack)
+        {
+            int position = m_bytes.size();
+            DataOutputStream out = new DataOutputStream(m_frames);
+            try {
+                out.writeByte(255); // full_frame
+                out.writeShort(m_lastFrame < 0 ? position : position - m_lastFrame - 1);
+                out.writeShort(locals.size());
+                for (String d : locals)
+                    writeVerificationType(out, d);
+                out.writeShort(stack.size());
+                for (String d : stack)
+                    writeVerificationType(out, d);
+            }
+            catch (IOException ex) {
+                throw new PassportException(ex.getMessage());
+            }
+
+            m_lastFrame = position;
+            ++m_frameCount;
+            m_stack = stack.stream().mapToInt(d -> slotSize(d.charAt(0))).sum();
+            if (m_stack > m_maxStack)
+                m_maxStack = m_stack;
+            return this;
+        }
+
+        private void writeVerificationType(DataOutputStream out, String descriptor) throws IOException
+        {
+            if (descriptor == null)
+            {
+                out.writeByte(0); // top
+                return;
+            }
+
+            switch (descriptor.charAt(0))
+            {
+                case 'J' -> out.writeByte(4);
+                case 'D' -> out.writeByte(3);
+                case 'F' -> out.writeByte(2);
+                case 'L' -> {
+                    out.writeByte(7);
+                    out.writeShort(m_pool.classRef(descriptor.substring(1, descriptor.length() - 1)));
+                }
+                case '[' -> {
+                    out.writeByte(7);
+                    out.writeShort(m_pool.classRef(descriptor));
+                }
+                default -> out.writeByte(1);
+            }
+        }
+
+        /**
+         * Protect a range of code with an exception handler.
+         *
+         * @param start The start of the protected range.
+         * @param end The end (exclusive) of the protected range.
+         * @param handler The start of the exception handler.
+         * @param exceptionClass The internal name of the exception caught, or null to catch everything.
+         */
+        Code tryCatch(Label start, Label end, Label handler, String exceptionClass)
+        {
+            m_exceptions.add(new Handler(start, end, handler, exceptionClass == null ? 0 : m_pool.classRef(exceptionClass)));
+            return this;
+        }
+
+        /**
+         * Finish the method and add it to the class.
+         */
+        void end()
+        {
+            byte[] code = m_bytes.toByteArray();
+            for (Handler h : m_exceptions)
+            {
+                if (h.start().m_position < 0 || h.end().m_position < 0 || h.handler().m_position < 0)
+                    throw new PassportException("Unbound exception handler label in " + m_name);
+            }
+            for (Label label : m_labels)
+            {
+                if (label.m_position < 0)
+                    throw new PassportException("Unbound label in " + m_name);
+                for (int at : label.m_fixups)
+                {
+                    int offset = label.m_position - at;
+                    code[at + 1] = (byte)(offset >> 8);
+                    code[at + 2] = (byte)offset;
+                }
+            }
+
+            DataOutputStream out = new DataOutputStream(m_methods);
+            try {
+                out.writeShort(m_access);
+                out.writeShort(m_pool.utf8(m_name));
+                out.writeShort(m_pool.utf8(m_descriptor));
+                out.writeShort(1);
+
+                int frameSize = m_frames.size();
+                out.writeShort(m_pool.utf8("Code"));
+                out.writeInt(12 + code.length + 8 * m_exceptions.size() + (m_frameCount > 0 ? 8 + frameSize : 0));
+                out.writeShort(m_maxStack);
+                out.writeShort(m_maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(m_exceptions.size());
+                for (Handler h : m_exceptions)
+                {
+                    out.writeShort(h.start().m_position);
+                    out.writeShort(h.end().m_position);
+                    out.writeShort(h.handler().m_position);
+                    out.writeShort(h.type());
+                }
+                if (m_frameCount > 0)
+                {
+                    out.writeShort(1);
+                    out.writeShort(m_pool.utf8("StackMapTable"));
+                    out.writeInt(2 + frameSize);
+                    out.writeShort(m_frameCount);
+                    m_frames.writeTo(out);
+                }
+                else
+                    out.writeShort(0);
+            }
+            catch (IOException ex) {
+                throw new PassportException(ex.getMessage());
+            }
+
+            ++m_methodCount;
+            m_openCode.remove(this);
+        }
+    }
+
+    /**
+     * The constant pool of the class. Entries are shared whenever possible.
+     */
+    private static class ConstantPool
+    {
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        private final DataOutputStream m_out = new DataOutputStream(m_bytes);
+        private final Map<String, Integer> m_entries = new HashMap<>();
+        private int m_next = 1;
+
+        private int entry(String key, int slots, EntryWriter writer)
+        {
+            Integer index = m_entries.get(key);
+            if (index != null)
+                return index;
+
+            try {
+                writer.write(m_out);
+            }
+            catch (IOException ex) {
+                throw new PassportException(ex.getMessage());
+            }
+
+            index = m_next;
+            m_next += slots;
+            m_entries.put(key, index);
+            return index;
+        }
+
+        int utf8(String value)
+        {
+            return entry("U" + value, 1, out -> {out.writeByte(1); out.writeUTF(value);});
+        }
+
+        int integer(int value)
+        {
+            return entry("I" + value, 1, out -> {out.writeByte(3); out.writeInt(value);});
+        }
+
+        int longValue(long value)
+        {
+            return entry("J" + value, 2, out -> {out.writeByte(5); out.writeLong(value);});
+        }
+
+        int classRef(String internalName)
+        {
+            int name = utf8(internalName);
+            return entry("C" + internalName, 1, out -> {out.writeByte(7); out.writeShort(name);});
+        }
+
+        int string(String value)
+        {
+            int utf = utf8(value);
+            return entry("S" + value, 1, out -> {out.writeByte(8); out.writeShort(utf);});
+        }
+
+        int nameAndType(String name, String descriptor)
+        {
+            int n = utf8(name);
+            int d = utf8(descriptor);
+            return entry("N" + name + " " + descriptor, 1, out -> {out.writeByte(12); out.writeShort(n); out.writeShort(d);});
+        }
+
+        /**
+         * @param tag 9 for a field, 10 for a class method, 11 for an interface method.
+         */
+        int memberRef(int tag, String owner, String name, String descriptor)
+        {
+            int c = classRef(owner);
+            int nt = nameAndType(name, descriptor);
+            return entry(tag + owner + "." + name + descriptor, 1, out -> {out.writeByte(tag); out.writeShort(c); out.writeShort(nt);});
+        }
+
+        void write(DataOutputStream out) throws IOException
+        {
+            out.writeShort(m_next);
+            m_bytes.writeTo(out);
+        }
+
+        private interface EntryWriter
+        {
+            void write(DataOutputStream out) throws IOException;
+        }
+    }
+}
@@ -1,38 +1,77 @@
 package jpassport;
 
+import jdk.incubator.foreign.*;
+import jdk.incubator.foreign.MemoryLayout.PathElement;
+import jpassport.annotations.Cached;
+import jpassport.annotations.Free;
+import jpassport.annotations.Length;
 import jpassport.annotations.Ptr;
 import jpassport.annotations.PtrPtrArg;
+import jpassport.annotations.In;
+import jpassport.annotations.InOut;
+import jpassport.annotations.Out;
 import jpassport.annotations.RefArg;
-import jpassport.annotations.StructPadding;
 
-import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
 import java.lang.annotation.Annotation;
 import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static jpassport.Utils.Platform.Windows;
+import static jpassport.ClassFileWriter.*;
 
+/**
+ * Writes the byte code of a class that implements a Passport interface. Every interface method
+ * converts its arguments to native memory, calls the downcall MethodHandle for the method and
+ * converts the results back.
+ */
 public class ClassWriter <T extends Passport>
 {
-    private final StringBuilder m_source = new StringBuilder();
-    private final StringBuilder m_moduleSource = new StringBuilder();
-    private final StringBuilder m_initSource = new StringBuilder();
+    private static final String OBJECT = "java/lang/Object";
+    private static final String THROWABLE = "java/lang/Throwable";
+    private static final String ERROR = "java/lang/Error";
+    private static final String MAP = internalName(Map.class);
+    private static final String METHOD_HANDLE = internalName(MethodHandle.class);
+    private static final String NATIVE_SCOPE = internalName(NativeScope.class);
+    private static final String MEMORY_SEGMENT = internalName(MemorySegment.class);
+    private static final String MEMORY_ADDRESS = internalName(MemoryAddress.class);
+    private static final String MEMORY_ACCESS = internalName(MemoryAccess.class);
+    private static final String CLINKER = internalName(CLinker.class);
+    private static final String UTILS = internalName(Utils.class);
+
+    private final Class<T> m_interfaceClass;
+    private final Set<Class> m_records;
+    private final Map<Method, Class> m_methods = new LinkedHashMap<>();
+    private final Map<Class, GroupLayout> m_layouts;
+    private final Path m_buildRoot;
     private final String m_className;
     private final String m_fullClassName;
     private final int m_ID;
 
+    // These are only set while the class is being written
+    private ClassFileWriter m_class;
+    private ClassFileWriter.Code m_staticInit;
+
+    // The MethodHandles and layouts for classes that are not hidden classes, waiting for the class to be initialized
+    private static final Map<Class<?>, Map<String, Object>> Pending_Class_Data = new ConcurrentHashMap<>();
+    // The classes built ahead of time that have been linked, their MethodHandles can only be set once
+    private static final Set<Class<?>> Linked_Prebuilt = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
     private static final Map<Class, String> typeToName = new HashMap<>()
     {
         {
             put(byte.class, "Byte");
             put(short.class, "Short");
+            put(char.class, "Char");
             put(int.class, "Int");
             put(long.class, "Long");
             put(float.class, "Float");
@@ -40,281 +79,672 @@ public class ClassWriter <T extends Passport>
         }
     };
 
-    private static int Class_ID = 1;
+    private static final AtomicInteger Class_ID = new AtomicInteger(1);
+
+    // The internal methods that generated code calls. They are passed to the class in its class data, like the
+    // downcall MethodHandles, so they can stay package private even for classes that are not in this package.
+    private static final Map<String, MethodHandle> Hooks = new TreeMap<>();
+    static
+    {
+        addHook(CallArena.class, "open", NativeScope.class);
+        addHook(CallArena.class, "findStored", MemorySegment.class, NativeScope.class, Object.class);
+        addHook(CallArena.class, "addStored", MemorySegment.class, NativeScope.class, Object.class, MemorySegment.class);
+        addHook(CallArena.class, "findRead", Object.class, NativeScope.class, MemoryAddress.class, Class.class);
+        addHook(CallArena.class, "startRead", void.class, NativeScope.class, MemoryAddress.class, Class.class);
+        addHook(CallArena.class, "addRead", Object.class, NativeScope.class, MemoryAddress.class, Class.class, Object.class);
+        addHook(RecordCache.class, "find", MemoryAddress.class, NativeScope.class, Object.class);
+        addHook(RecordCache.class, "newScope", NativeScope.class);
+        addHook(RecordCache.class, "add", MemoryAddress.class, NativeScope.class, Object.class, NativeScope.class, MemorySegment.class);
+    }
 
     ClassWriter(Class<T> interfaceClass, Set<Class> extraImports)
     {
-        m_ID = Class_ID++;
-        m_className = interfaceClass.getSimpleName() + "_impl";
-        String packageName = "jpassport.called_" + m_ID;
-        m_fullClassName = packageName + "." + m_className;
-        String structLayouts = buildStructLayouts(extraImports);
-
-        m_source.append(String.format("""
-                    package %s;
-
-                    %s
-                    import %s;
-                    import jpassport.Utils;
-                    import java.lang.invoke.MethodHandle;
-                    import jdk.incubator.foreign.*;
-                    import jdk.incubator.foreign.MemoryLayout.PathElement;
-                    import java.util.HashMap;
-                    
-                    public class %s implements %s {
-                        HashMap<String, MethodHandle> m_methods;
-                        %s
-                        
-                        public %s(HashMap<String, MethodHandle> methods)
-                        {
-                            m_methods = methods;
-                            init();
-                        }
-
-                    """,
-                packageName,
-                buildExtraImports(extraImports),
-                interfaceClass.getName(),
-                m_className, interfaceClass.getSimpleName(),
-                structLayouts,
-                m_className));
-
-        m_source.append(buildStructConverter(extraImports));
-        m_source.append(buildStructReader(extraImports));
-
-        m_initSource.append("""
-                                    private void init(){
-                                """);
-
-        m_moduleSource.append(String.format("""
-                    module foreign.caller {
-                        requires jdk.incubator.foreign;
-                        requires jpassport;
-                        requires %s;
-                    }
-                    """, interfaceClass.getModule().getName()));
-
-    }
-
-    /**
-     * Any extra Records that we want to work with must be imported into the class.
-     * @param imports All of the record types.
-     * @return The import statements for the records.
-     */
-    public String buildExtraImports(Set<Class> imports)
-    {
-        StringBuilder strImports = new StringBuilder();
-        for (Class c : imports)
-            strImports.append("import ").append(c.getName()).append(";\n");
-        return strImports.toString();
-    }
-
-    /**
-     * This code will build all of the code required to convert a Record object into a MemoryLayout.
+        this(interfaceClass, extraImports, null);
+    }
+
+    /**
+     * @param interfaceClass The interface to implement.
+     * @param extraImports The Records used by the interface.
+     * @param fullClassName The name of the class to write, or null to pick one for a class built at run time.
+     */
+    ClassWriter(Class<T> interfaceClass, Set<Class> extraImports, String fullClassName)
+    {
+        m_ID = Class_ID.getAndIncrement();
+        m_interfaceClass = interfaceClass;
+        m_buildRoot = Utils.getBuildFolder();
+
+        // Hidden classes have to be in the package of the Lookup that defines them, the JVM makes the name unique.
+        if (fullClassName != null)
+            m_fullClassName = fullClassName;
+        else if (m_buildRoot == null)
+            m_fullClassName = "jpassport." + interfaceClass.getSimpleName() + "_impl";
+        else
+            m_fullClassName = "jpassport.called_" + m_ID + "." + interfaceClass.getSimpleName() + "_impl";
+        m_className = m_fullClassName.replace('.', '/');
+        m_records = extraImports;
+        m_layouts = buildStructLayouts(extraImports);
+    }
+
+    /**
+     * Write the byte code of the whole class.
+     *
+     * @return The class file.
+     */
+    byte[] writeClass()
+    {
+        m_class = new ClassFileWriter(m_className, OBJECT, internalName(m_interfaceClass));
+
+        ClassFileWriter.Code constructor = m_class.addMethod(ACC_PUBLIC, "<init>", methodDescriptor(void.class));
+        constructor.load(Object.class, 0)
+                .invokespecial(OBJECT, "<init>", "()V")
+                .returnValue(void.class);
+        constructor.end();
+
+        // The MethodHandles and layouts are static finals so that the JIT can treat them as constants.
+        // The static initializer is finished at the end, writeMethod() adds the code to set up each MethodHandle.
+        m_staticInit = m_class.addMethod(ACC_STATIC, "<clinit>", methodDescriptor(void.class));
+        int classData = m_staticInit.newLocal(Map.class);
+        m_staticInit.invokestatic(internalName(MethodHandles.class), "lookup", methodDescriptor(MethodHandles.Lookup.class), false)
+                .invokestatic(UTILS, "getClassData", methodDescriptor(Map.class, MethodHandles.Lookup.class), false)
+                .store(Map.class, classData);
+
+        for (String hook : Hooks.keySet())
+            addStaticField(hookField(hook), MethodHandle.class);
+
+        // The struct offsets are resolved when the class is linked, the converters read them as constants
+        m_layouts.forEach((c, layout) -> {
+            addStaticField(sizeField(c), long.class);
+            for (String member : memberNames(layout))
+                addStaticField(offsetField(c, member), long.class);
+        });
+
+        buildStructConverter(m_records);
+        buildStructReader(m_records);
+        m_methods.forEach(this::writeMethod);
+
+        m_staticInit.returnValue(void.class);
+        m_staticInit.end();
+        byte[] classBytes = m_class.toByteArray();
+
+        m_class = null;
+        m_staticInit = null;
+        return classBytes;
+    }
+
+    /**
+     * Add a static final field that is set from the class data in the static initializer.
+     * The name of the field is also its key in the class data.
+     */
+    private void addStaticField(String name, Class type)
+    {
+        m_class.addField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, name, type.descriptorString());
+        // The class data is the first local of the static initializer
+        m_staticInit.load(Map.class, 0)
+                .ldc(name)
+                .invokeinterface(MAP, "get", methodDescriptor(Object.class, Object.class));
+
+        if (long.class.equals(type))
+            m_staticInit.checkcast(internalName(Long.class))
+                    .invokevirtual(internalName(Long.class), "longValue", methodDescriptor(long.class));
+        else
+            m_staticInit.checkcast(internalName(type));
+
+        m_staticInit.putstatic(m_className, name, type.descriptorString());
+    }
+
+    /**
+     * This code will build all of the MemoryLayouts required to convert a Record object.
      * A MemoryLayout is the Java wrapper around a C struct.
      *
      * @param records All of the record types that we need to handle.
-     * @return The code to create all of the required MemoryLayouts
+     * @return The MemoryLayout for every Record type.
      */
-    public String buildStructLayouts(Set<Class> records)
+    public Map<Class, GroupLayout> buildStructLayouts(Set<Class> records)
     {
-        //We need to build all of the MemoryLayouts separately and bundle them together later.
-        //If any one record requires other records then we need to make sure the code is ordered
-        //properly so there are no forward references.
-        HashMap<Class, List<Class>> requiresMap = new HashMap<>();
-        HashMap<Class, StringBuilder> layoutMap = new HashMap<>();
+        Map<Class, GroupLayout> layouts = new HashMap<>();
 
         for (Class c : records)
         {
-            if (!c.isRecord())
-                continue;
+            if (c.isRecord())
+                Structs.layout(c, layouts);
+        }
 
-            if (!requiresMap.containsKey(c))
-                requiresMap.put(c, new ArrayList<>());
+        return layouts;
+    }
 
-            StringBuilder sb = new StringBuilder();
-            layoutMap.put(c, sb);
+    private static String sizeField(Class record)
+    {
+        return record.getSimpleName() + "Size";
+    }
 
-            sb.append(String.format("private static final GroupLayout %sLayout = MemoryLayout.ofStruct(\n", c.getSimpleName()));
+    private static String offsetField(Class record, String member)
+    {
+        return record.getSimpleName() + "Offset_" + member;
+    }
 
-            for (Field f : c.getDeclaredFields())
-            {
-                int paddingBits = getPaddingBits(f);
+    /**
+     * @return The names of the members of a struct, padding is not named.
+     */
+    private static List<String> memberNames(GroupLayout layout)
+    {
+        return layout.memberLayouts().stream().map(MemoryLayout::name).flatMap(Optional::stream).toList();
+    }
 
-                // negative indicates pre-padding
-                if (paddingBits < 0)
-                    sb.append(String.format("\t\tMemoryLayout.ofPaddingBits(%d),\n", -paddingBits));
+    private static String methodField(String methodName)
+    {
+        return "m_" + methodName;
+    }
 
-                Class type = f.getType();
-                if (type.isPrimitive())
-                {
-                    if (int.class.equals(type))
-                        sb.append(String.format("\t\tCLinker.C_INT.withName(\"%s\"),\n", f.getName()));
-                    else if (long.class.equals(type))
-                        sb.append(String.format("\t\tCLinker.C_LONG_LONG.withName(\"%s\"),\n", f.getName()));
-                    else if (float.class.equals(type))
-                        sb.append(String.format("\t\tCLinker.C_FLOAT.withName(\"%s\"),\n", f.getName()));
-                    else if (double.class.equals(type))
-                        sb.append(String.format("\t\tCLinker.C_DOUBLE.withName(\"%s\"),\n", f.getName()));
-                }
-                else if (type.isRecord())
-                {
-                    requiresMap.get(c).add(type);
-                    boolean isPtr = f.getAnnotationsByType(Ptr.class).length > 0;
-                    if (isPtr)
-                        sb.append(String.format("\t\tCLinker.C_POINTER.withName(\"%s\"),\n", f.getName()));
-                    else
-                        sb.append(String.format("\t\t%sLayout.withName(\"%s\"),\n",type.getSimpleName(), f.getName()));
-                }
-                else if (String.class.equals(type))
-                    sb.append(String.format("\t\tCLinker.C_POINTER.withName(\"%s\"),\n", f.getName()));
+    private static String hookField(String hook)
+    {
+        return "hook_" + hook;
+    }
 
-                if (paddingBits > 0)
-                    sb.append(String.format("\t\tMemoryLayout.ofPaddingBits(%d),\n", paddingBits));
-            }
-            sb.setLength(sb.length() - 2);
-            sb.append(");\n\n");
+    private static void addHook(Class<?> c, String name, Class<?> returnType, Class<?>... parameters)
+    {
+        try {
+            Hooks.put(name, MethodHandles.lookup().findStatic(c, name, MethodType.methodType(returnType, parameters)));
         }
-
-        StringBuilder allStructs = new StringBuilder();
-        // This code attempts to only write out Records that have all Records they depend on written out first.
-        //Without this code we could get compile failures because of forward references.
-        while (!requiresMap.isEmpty())
-        {
-            List<Class> allRecords = new ArrayList<>();
-            allRecords.addAll(requiresMap.keySet());
-            for (Class c : allRecords)
-            {
-                List<Class> required = requiresMap.get(c);
-                if (required.stream().anyMatch(layoutMap::containsKey))
-                    continue;
-
-                allStructs.append(layoutMap.remove(c));
-                requiresMap.remove(c);
-            }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new PassportException(ex.getMessage());
         }
+    }
 
-        return allStructs.toString();
+    /**
+     * Push the MethodHandle of an internal method on to the stack, the arguments go on top of it.
+     */
+    private void loadHook(ClassFileWriter.Code code, String hook)
+    {
+        code.getstatic(m_className, hookField(hook), MethodHandle.class.descriptorString());
     }
 
-    private int getPaddingBits(Field field)
+    /**
+     * Call the internal method whose MethodHandle and arguments are on the stack.
+     */
+    private ClassFileWriter.Code invokeHook(ClassFileWriter.Code code, String hook)
     {
-        Annotation[] annotations = field.getAnnotationsByType(StructPadding.class);
-        int paddingBytes = 0;
+        return code.invokevirtual(METHOD_HANDLE, "invokeExact", Hooks.get(hook).type().toMethodDescriptorString());
+    }
 
-        if (annotations.length > 0)
-        {
-            StructPadding sp = ((StructPadding) annotations[0]);
-            paddingBytes = sp.bytes();
-
-            Utils.Platform p = Utils.getPlatform();
-            if (Windows.equals(p) && sp.windowsBytes() != StructPadding.NO_VALUE)
-                paddingBytes = sp.windowsBytes();
-            else if (Utils.Platform.Mac.equals(p) && sp.macBytes() != StructPadding.NO_VALUE)
-                paddingBytes = sp.macBytes();
-            else if (Utils.Platform.Linux.equals(p) && sp.linuxBytes() != StructPadding.NO_VALUE)
-                paddingBytes = sp.linuxBytes();
-        }
+    /**
+     * Push the byte offset of a named member of a struct on to the stack.
+     *
+     * @param code The method being written.
+     * @param record The Record that is stored in the struct.
+     * @param member The name of the struct member.
+     */
+    private void pushOffset(ClassFileWriter.Code code, Class record, String member)
+    {
+        code.getstatic(m_className, offsetField(record, member), "J");
+    }
 
-        return paddingBytes * 8;
+    private void pushSize(ClassFileWriter.Code code, Class record)
+    {
+        code.getstatic(m_className, sizeField(record), "J");
     }
 
     /**
-     * This code is used to write the code that converts Record classes into MemorySegments that can be passed
-     * into methods.
+     * This code is used to write the methods that convert Record classes into MemorySegments that can be passed
+     * into methods. Every Record gets a method that writes it into memory that is already allocated, so that
+     * nested Records and arrays of Records are written in place, and methods that allocate memory for one Record
+     * or for an array of them.
      *
      * @param records all of the Record types we need to support.
-     * @return The code that converts Records into MemorySegments
      */
-    public String buildStructConverter(Set<Class> records)
+    public void buildStructConverter(Set<Class> records)
     {
-        StringBuilder sb = new StringBuilder();
-
         for (Class c : records)
         {
             if (!c.isRecord())
                 continue;
 
-            sb.append(String.format("""
-                        private MemorySegment store%1$s(NativeScope scope, %1$s rec) {
-                            GroupLayout layout = %1$sLayout;
-                            MemorySegment memStruct = scope.allocate(layout.byteSize());
-                            
-                    """,
-                    c.getSimpleName()));
+            buildStructWriter(c);
+
+            // store<Record>(NativeScope, Record)
+            ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "store" + c.getSimpleName(),
+                    methodDescriptor(MemorySegment.class, NativeScope.class, c));
+            int memStruct = code.newLocal(MemorySegment.class);
+
+            code.load(NativeScope.class, 1);
+            pushSize(code, c);
+            code.lconst(Structs.ALIGNMENT)
+                    .invokeinterface(NATIVE_SCOPE, "allocate", methodDescriptor(MemorySegment.class, long.class, long.class))
+                    .store(MemorySegment.class, memStruct)
+                    .load(Object.class, 0)
+                    .load(NativeScope.class, 1)
+                    .load(MemorySegment.class, memStruct)
+                    .load(c, 2)
+                    .invokevirtual(m_className, "write" + c.getSimpleName(),
+                            methodDescriptor(void.class, NativeScope.class, MemorySegment.class, c))
+                    .load(MemorySegment.class, memStruct)
+                    .returnValue(MemorySegment.class);
+            code.end();
+
+            buildStructPointer(c);
+            buildCachedStruct(c);
+            buildStructArrayConverter(c);
+        }
+    }
 
+    /**
+     * Write the method that stores the members of a Record in a struct, write&lt;Record&gt;(NativeScope, MemorySegment, Record).
+     *
+     * @param c The Record class.
+     */
+    private void buildStructWriter(Class c)
+    {
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "write" + c.getSimpleName(),
+                methodDescriptor(void.class, NativeScope.class, MemorySegment.class, c));
 
-            for (Field f : c.getDeclaredFields())
+        for (Field f : c.getDeclaredFields())
+        {
+            Class type = f.getType();
+            if (type.isPrimitive())
             {
-                Class type = f.getType();
-                if (type.isPrimitive())
-                    sb.append(String.format("\t\tMemoryAccess.set%2$sAtOffset(memStruct, layout.byteOffset(PathElement.groupElement(\"%1$s\")), rec.%1$s());\n", f.getName(), typeToName.get(type)));
-                else if (type.isRecord())
-                {
-                    boolean isPtr = f.getAnnotationsByType(Ptr.class).length > 0;
-                    if (isPtr)
-                        sb.append(String.format("\t\tMemoryAccess.setAddressAtOffset(memStruct, layout.byteOffset(PathElement.groupElement(\"%1$s\")), store%2$s(scope, rec.%1$s()));\n", f.getName(), type.getSimpleName()));
-                    else
-                        sb.append(String.format("\t\tmemStruct.asSlice(layout.byteOffset(MemoryLayout.PathElement.groupElement(\"%1$s\"))).copyFrom(store%2$s(scope, rec.%1$s()));\n", f.getName(), type.getSimpleName()));
-                }
-                else if (String.class.equals(type))
-                    sb.append(String.format("\t\tMemoryAccess.setAddressAtOffset(memStruct, layout.byteOffset(PathElement.groupElement(\"%1$s\")), CLinker.toCString(rec.%1$s(), scope).address());\n", f.getName()));
+                code.load(MemorySegment.class, 2);
+                pushOffset(code, c, f.getName());
+                code.load(c, 3)
+                        .invokevirtual(internalName(c), f.getName(), methodDescriptor(type))
+                        .invokestatic(MEMORY_ACCESS, "set" + typeToName.get(type) + "AtOffset",
+                                methodDescriptor(void.class, MemorySegment.class, long.class, type), false);
+            }
+            else if (type.isArray())
+            {
+                code.load(MemorySegment.class, 2);
+                pushOffset(code, c, f.getName());
+                code.lconst(Structs.arrayBytes(Structs.Member.of(f)))
+                        .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                        .load(c, 3)
+                        .invokevirtual(internalName(c), f.getName(), methodDescriptor(type))
+                        .invokestatic(MEMORY_SEGMENT, "ofArray", methodDescriptor(MemorySegment.class, type), true)
+                        .invokestatic(UTILS, "toStruct", methodDescriptor(void.class, MemorySegment.class, MemorySegment.class), false);
+            }
+            else if (type.isRecord() && f.getAnnotationsByType(Ptr.class).length > 0)
+            {
+                code.load(MemorySegment.class, 2);
+                pushOffset(code, c, f.getName());
+                code.load(Object.class, 0)
+                        .load(NativeScope.class, 1)
+                        .load(c, 3)
+                        .invokevirtual(internalName(c), f.getName(), methodDescriptor(type))
+                        .invokevirtual(m_className, "pointTo" + type.getSimpleName(),
+                                methodDescriptor(Addressable.class, NativeScope.class, type))
+                        .invokestatic(MEMORY_ACCESS, "setAddressAtOffset",
+                                methodDescriptor(void.class, MemorySegment.class, long.class, Addressable.class), false);
+            }
+            else if (type.isRecord())
+            {
+                // A nested struct is written straight into its part of this struct
+                code.load(Object.class, 0)
+                        .load(NativeScope.class, 1)
+                        .load(MemorySegment.class, 2);
+                pushOffset(code, c, f.getName());
+                code.invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class))
+                        .load(c, 3)
+                        .invokevirtual(internalName(c), f.getName(), methodDescriptor(type))
+                        .invokevirtual(m_className, "write" + type.getSimpleName(),
+                                methodDescriptor(void.class, NativeScope.class, MemorySegment.class, type));
+            }
+            else if (String.class.equals(type))
+            {
+                code.load(MemorySegment.class, 2);
+                pushOffset(code, c, f.getName());
+                code.load(NativeScope.class, 1)
+                        .load(c, 3)
+                        .invokevirtual(internalName(c), f.getName(), methodDescriptor(String.class))
+                        .invokestatic(UTILS, "toCString", methodDescriptor(MemorySegment.class, NativeScope.class, String.class), false)
+                        .invokeinterface(MEMORY_SEGMENT, "address", methodDescriptor(MemoryAddress.class))
+                        .invokestatic(MEMORY_ACCESS, "setAddressAtOffset",
+                                methodDescriptor(void.class, MemorySegment.class, long.class, Addressable.class), false);
             }
-            sb.append("\n\t\treturn memStruct;\n\t}\n\n");
         }
 
-        return sb.toString();
+        code.returnValue(void.class);
+        code.end();
+    }
+
+    /**
+     * Write the method that gives the native memory a @Ptr member points to, pointTo&lt;Record&gt;(NativeScope, Record).
+     * A Record that more than one member points to is only stored once during a call, so the pointers in native
+     * memory are the same when the Java references are. A null Record is a NULL pointer.
+     *
+     * @param c The Record class.
+     */
+    private void buildStructPointer(Class c)
+    {
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "pointTo" + c.getSimpleName(),
+                methodDescriptor(Addressable.class, NativeScope.class, c));
+        int stored = code.newLocal(MemorySegment.class);
+        String self = "L" + m_className + ";";
+
+        ClassFileWriter.Label notNull = new ClassFileWriter.Label();
+        ClassFileWriter.Label notStored = new ClassFileWriter.Label();
+        code.load(c, 2)
+                .ifnonnull(notNull)
+                .getstatic(MEMORY_ADDRESS, "NULL", MemoryAddress.class.descriptorString())
+                .returnValue(Addressable.class);
+
+        code.mark(notNull).frame(List.of(self, NativeScope.class.descriptorString(), c.descriptorString()), List.of());
+        loadHook(code, "findStored");
+        code.load(NativeScope.class, 1)
+                .load(c, 2);
+        invokeHook(code, "findStored")
+                .store(MemorySegment.class, stored)
+                .load(MemorySegment.class, stored)
+                .ifnull(notStored)
+                .load(MemorySegment.class, stored)
+                .returnValue(Addressable.class);
+
+        code.mark(notStored).frame(List.of(self, NativeScope.class.descriptorString(), c.descriptorString(),
+                        MemorySegment.class.descriptorString()), List.of());
+        loadHook(code, "addStored");
+        code.load(NativeScope.class, 1)
+                .load(c, 2)
+                .load(Object.class, 0)
+                .load(NativeScope.class, 1)
+                .load(c, 2)
+                .invokevirtual(m_className, "store" + c.getSimpleName(), methodDescriptor(MemorySegment.class, NativeScope.class, c));
+        invokeHook(code, "addStored")
+                .returnValue(Addressable.class);
+        code.end();
+    }
+
+    /**
+     * Write the method that passes a @Cached Record, cached&lt;Record&gt;(NativeScope, Record). The Record is only
+     * stored the first time it is passed, in a scope that is kept by RecordCache.
+     *
+     * @param c The Record class.
+     */
+    private void buildCachedStruct(Class c)
+    {
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "cached" + c.getSimpleName(),
+                methodDescriptor(MemoryAddress.class, NativeScope.class, c));
+        int cached = code.newLocal(MemoryAddress.class);
+        int owner = code.newLocal(NativeScope.class);
+
+        ClassFileWriter.Label notCached = new ClassFileWriter.Label();
+        loadHook(code, "find");
+        code.load(NativeScope.class, 1)
+                .load(c, 2);
+        invokeHook(code, "find")
+                .store(MemoryAddress.class, cached)
+                .load(MemoryAddress.class, cached)
+                .ifnull(notCached)
+                .load(MemoryAddress.class, cached)
+                .returnValue(MemoryAddress.class);
+
+        code.mark(notCached).frame(List.of("L" + m_className + ";", NativeScope.class.descriptorString(), c.descriptorString(),
+                        MemoryAddress.class.descriptorString()), List.of());
+        loadHook(code, "newScope");
+        invokeHook(code, "newScope")
+                .store(NativeScope.class, owner);
+        loadHook(code, "add");
+        code.load(NativeScope.class, 1)
+                .load(c, 2)
+                .load(NativeScope.class, owner)
+                .load(Object.class, 0)
+                .load(NativeScope.class, owner)
+                .load(c, 2)
+                .invokevirtual(m_className, "store" + c.getSimpleName(), methodDescriptor(MemorySegment.class, NativeScope.class, c));
+        invokeHook(code, "add")
+                .returnValue(MemoryAddress.class);
+        code.end();
+    }
+
+    /**
+     * Write the method that stores an array of Records as one block of structs, store&lt;Record&gt;Array(NativeScope, Record[]).
+     * Element i starts at i * the size of the struct, the same as an array of structs in C.
+     *
+     * @param c The Record class.
+     */
+    private void buildStructArrayConverter(Class c)
+    {
+        Class arrayType = c.arrayType();
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "store" + c.getSimpleName() + "Array",
+                methodDescriptor(MemorySegment.class, NativeScope.class, arrayType));
+        int memStructs = code.newLocal(MemorySegment.class);
+        int i = code.newLocal(int.class);
+        List<String> locals = List.of("L" + m_className + ";", NativeScope.class.descriptorString(),
+                arrayType.descriptorString(), MemorySegment.class.descriptorString(), "I");
+
+        code.load(NativeScope.class, 1);
+        pushSize(code, c);
+        code.load(arrayType, 2)
+                .arraylength()
+                .i2l()
+                .lmul()
+                .lconst(Structs.ALIGNMENT)
+                .invokeinterface(NATIVE_SCOPE, "allocate", methodDescriptor(MemorySegment.class, long.class, long.class))
+                .store(MemorySegment.class, memStructs)
+                .iconst(0)
+                .store(int.class, i);
+
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label done = new ClassFileWriter.Label();
+        code.mark(loop).frame(locals, List.of())
+                .load(int.class, i)
+                .load(arrayType, 2)
+                .arraylength()
+                .ifIcmpge(done)
+                .load(Object.class, 0)
+                .load(NativeScope.class, 1);
+        pushElement(code, c, memStructs, i);
+        code.load(arrayType, 2)
+                .load(int.class, i)
+                .aaload()
+                .invokevirtual(m_className, "write" + c.getSimpleName(),
+                        methodDescriptor(void.class, NativeScope.class, MemorySegment.class, c))
+                .iinc(i, 1)
+                .goTo(loop);
+
+        code.mark(done).frame(locals, List.of())
+                .load(MemorySegment.class, memStructs)
+                .returnValue(MemorySegment.class);
+        code.end();
+    }
+
+    /**
+     * Push the slice of an array of structs that holds one element on to the stack.
+     *
+     * @param code The method being written.
+     * @param record The Record that is stored in the structs.
+     * @param segment The local holding the array of structs.
+     * @param index The local holding the element index.
+     */
+    private void pushElement(ClassFileWriter.Code code, Class record, int segment, int index)
+    {
+        code.load(MemorySegment.class, segment)
+                .load(int.class, index)
+                .i2l();
+        pushSize(code, record);
+        code.lmul();
+        pushSize(code, record);
+        code.invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class));
     }
 
     /**
      * If there is a Record class that needs to be read in then this method writes the code to convert the MemorySegment
      * back into a Record
      * @param records All of the record types to make readers for.
-     * @return The code to read all of the Record types.
      */
-    private String buildStructReader(Set<Class> records)
+    private void buildStructReader(Set<Class> records)
     {
-        StringBuilder sb = new StringBuilder();
-
         for (Class c : records)
         {
             if (!c.isRecord())
                 continue;
 
-            sb.append(String.format("""
-                        private %1$s read%1$s(MemorySegment memStruct) {
-                            GroupLayout layout = %1$sLayout;
-                    """,
-                    c.getSimpleName()));
-
+            ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "read" + c.getSimpleName(),
+                    methodDescriptor(c, NativeScope.class, MemorySegment.class));
+            Field[] fields = c.getDeclaredFields();
+            int[] values = new int[fields.length];
+            Class[] types = new Class[fields.length];
 
-            for (Field f : c.getDeclaredFields())
+            for (int n = 0; n < fields.length; ++n)
             {
+                Field f = fields[n];
                 Class type = f.getType();
+                types[n] = type;
+                values[n] = code.newLocal(type);
+
                 if (type.isPrimitive())
-                    sb.append(String.format("\t\tvar %1$s = MemoryAccess.get%2$sAtOffset(memStruct, layout.byteOffset(PathElement.groupElement(\"%1$s\")));\n", f.getName(), typeToName.get(type)));
+                {
+                    code.load(MemorySegment.class, 2);
+                    pushOffset(code, c, f.getName());
+                    code.invokestatic(MEMORY_ACCESS, "get" + typeToName.get(type) + "AtOffset",
+                            methodDescriptor(type, MemorySegment.class, long.class), false);
+                }
+                else if (type.isArray())
+                {
+                    code.load(MemorySegment.class, 2);
+                    pushOffset(code, c, f.getName());
+                    code.lconst(Structs.arrayBytes(Structs.Member.of(f)))
+                            .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                            .invokeinterface(MEMORY_SEGMENT, "to" + typeToName.get(type.getComponentType()) + "Array", methodDescriptor(type));
+                }
+                else if (type.isRecord() && f.getAnnotationsByType(Ptr.class).length > 0)
+                {
+                    code.load(Object.class, 0)
+                            .load(NativeScope.class, 1)
+                            .load(MemorySegment.class, 2);
+                    pushOffset(code, c, f.getName());
+                    code.invokestatic(MEMORY_ACCESS, "getAddressAtOffset",
+                                    methodDescriptor(MemoryAddress.class, MemorySegment.class, long.class), false)
+                            .invokevirtual(m_className, "readPointer" + type.getSimpleName(),
+                                    methodDescriptor(type, NativeScope.class, MemoryAddress.class));
+                }
                 else if (type.isRecord())
                 {
-                    boolean isPointer = f.getAnnotationsByType(Ptr.class).length > 0;
-                    if (isPointer)
-                        sb.append(String.format("\t\tvar %1$s = read%2$s(MemoryAccess.getAddressAtOffset(memStruct, layout.byteOffset(PathElement.groupElement(\"%1$s\"))).asSegmentRestricted(%2$sLayout.byteSize()));\n", f.getName(), type.getSimpleName()));
-                    else
-                        sb.append(String.format("\t\tvar %1$s = read%2$s(memStruct.asSlice(layout.byteOffset(MemoryLayout.PathElement.groupElement(\"%1$s\"))));\n", f.getName(), type.getSimpleName()));
+                    code.load(Object.class, 0)
+                            .load(NativeScope.class, 1)
+                            .load(MemorySegment.class, 2);
+                    pushOffset(code, c, f.getName());
+                    code.invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class))
+                            .invokevirtual(m_className, "read" + type.getSimpleName(),
+                                    methodDescriptor(type, NativeScope.class, MemorySegment.class));
                 }
                 else if (String.class.equals(type))
-                    sb.append(String.format("\t\tvar %1$s = CLinker.toJavaStringRestricted(MemoryAccess.getAddressAtOffset(memStruct, layout.byteOffset(PathElement.groupElement(\"%1$s\"))));\n", f.getName()));
+                {
+                    code.load(MemorySegment.class, 2);
+                    pushOffset(code, c, f.getName());
+                    code.invokestatic(MEMORY_ACCESS, "getAddressAtOffset",
+                                    methodDescriptor(MemoryAddress.class, MemorySegment.class, long.class), false)
+                            .invokestatic(CLINKER, "toJavaStringRestricted", methodDescriptor(String.class, MemoryAddress.class), true);
+                }
+                else
+                    code.aconstNull();
+
+                code.store(type, values[n]);
             }
 
             // Building the Record class to return
-            sb.append(String.format("\t\treturn new %s(", c.getSimpleName()));
-            for (Field f : c.getDeclaredFields()) {
-                sb.append(f.getName()).append(",");
-            }
-            sb.setLength(sb.length() - 1);
-            sb.append(");\n\t}\n\n");
+            code.newObject(internalName(c)).dup();
+            for (int n = 0; n < fields.length; ++n)
+                code.load(types[n], values[n]);
+            code.invokespecial(internalName(c), "<init>", methodDescriptor(void.class, types))
+                    .returnValue(c);
+            code.end();
+
+            buildPointerReader(c);
+            buildStructArrayReader(c);
         }
+    }
+
+    /**
+     * Write the method that reads the struct a @Ptr member points to, readPointer&lt;Record&gt;(NativeScope, MemoryAddress).
+     * A NULL pointer is a null Record, and pointers to the same struct give the same Record during a call.
+     *
+     * @param c The Record class.
+     */
+    private void buildPointerReader(Class c)
+    {
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "readPointer" + c.getSimpleName(),
+                methodDescriptor(c, NativeScope.class, MemoryAddress.class));
+        int read = code.newLocal(Object.class);
+        String self = "L" + m_className + ";";
+
+        ClassFileWriter.Label notNull = new ClassFileWriter.Label();
+        ClassFileWriter.Label notRead = new ClassFileWriter.Label();
+        code.load(MemoryAddress.class, 2)
+                .getstatic(MEMORY_ADDRESS, "NULL", MemoryAddress.class.descriptorString())
+                .invokeinterface(MEMORY_ADDRESS, "equals", methodDescriptor(boolean.class, Object.class))
+                .ifeq(notNull)
+                .aconstNull()
+                .returnValue(c);
+
+        code.mark(notNull).frame(List.of(self, NativeScope.class.descriptorString(), MemoryAddress.class.descriptorString()), List.of());
+        loadHook(code, "findRead");
+        code.load(NativeScope.class, 1)
+                .load(MemoryAddress.class, 2)
+                .ldcClass(internalName(c));
+        invokeHook(code, "findRead")
+                .store(Object.class, read)
+                .load(Object.class, read)
+                .ifnull(notRead)
+                .load(Object.class, read)
+                .checkcast(internalName(c))
+                .returnValue(c);
+
+        code.mark(notRead).frame(List.of(self, NativeScope.class.descriptorString(), MemoryAddress.class.descriptorString(),
+                        Object.class.descriptorString()), List.of());
+        loadHook(code, "startRead");
+        code.load(NativeScope.class, 1)
+                .load(MemoryAddress.class, 2)
+                .ldcClass(internalName(c));
+        invokeHook(code, "startRead");
+        loadHook(code, "addRead");
+        code.load(NativeScope.class, 1)
+                .load(MemoryAddress.class, 2)
+                .ldcClass(internalName(c))
+                .load(Object.class, 0)
+                .load(NativeScope.class, 1)
+                .load(MemoryAddress.class, 2);
+        pushSize(code, c);
+        code.invokeinterface(MEMORY_ADDRESS, "asSegmentRestricted", methodDescriptor(MemorySegment.class, long.class))
+                .invokevirtual(m_className, "read" + c.getSimpleName(), methodDescriptor(c, NativeScope.class, MemorySegment.class));
+        invokeHook(code, "addRead")
+                .checkcast(internalName(c))
+                .returnValue(c);
+        code.end();
+    }
 
-        return sb.toString();
+    /**
+     * Write the method that reads every element of an array of structs back into an array of Records,
+     * read&lt;Record&gt;Array(NativeScope, Record[], MemorySegment).
+     *
+     * @param c The Record class.
+     */
+    private void buildStructArrayReader(Class c)
+    {
+        Class arrayType = c.arrayType();
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PRIVATE, "read" + c.getSimpleName() + "Array",
+                methodDescriptor(void.class, NativeScope.class, arrayType, MemorySegment.class));
+        int i = code.newLocal(int.class);
+        List<String> locals = List.of("L" + m_className + ";", NativeScope.class.descriptorString(), arrayType.descriptorString(),
+                MemorySegment.class.descriptorString(), "I");
+
+        code.iconst(0).store(int.class, i);
+
+        ClassFileWriter.Label loop = new ClassFileWriter.Label();
+        ClassFileWriter.Label done = new ClassFileWriter.Label();
+        code.mark(loop).frame(locals, List.of())
+                .load(int.class, i)
+                .load(arrayType, 2)
+                .arraylength()
+                .ifIcmpge(done)
+                .load(arrayType, 2)
+                .load(int.class, i)
+                .load(Object.class, 0)
+                .load(NativeScope.class, 1);
+        pushElement(code, c, 3, i);
+        code.invokevirtual(m_className, "read" + c.getSimpleName(), methodDescriptor(c, NativeScope.class, MemorySegment.class))
+                .aastore()
+                .iinc(i, 1)
+                .goTo(loop);
+
+        code.mark(done).frame(locals, List.of())
+                .returnValue(void.class);
+        code.end();
     }
 
     /**
@@ -324,144 +754,583 @@ public class ClassWriter <T extends Passport>
      */
     public void addMethod(Method method, Class retType)
     {
-        StringBuilder args = new StringBuilder();
-        StringBuilder params = new StringBuilder();
-        StringBuilder tryArgs = new StringBuilder();
-        StringBuilder postCall = new StringBuilder();
-        StringBuilder preCall = new StringBuilder();
+        if (retType.isRecord())
+            throw new PassportException("Returning Records is not supported: " + method.getName());
+        if (retType.isArray() && !isArrayOfPrimitives(retType))
+            throw new PassportException("Only 1D arrays of primitives can be returned: " + method.getName());
+        if (isBuffer(retType))
+            throw new PassportException("Returning buffers is not supported, return a MemoryAddress: " + method.getName());
+        if (retType.isArray() && method.getAnnotation(Length.class) == null)
+            throw new PassportException("Returned arrays need @Length to give the number of elements: " + method.getName());
+        if (!retType.isArray() && method.getAnnotation(Length.class) != null)
+            throw new PassportException("@Length is only used on methods that return an array of primitives: " + method.getName());
+        if (!retType.isArray() && !String.class.equals(retType) && method.getAnnotation(Free.class) != null)
+            throw new PassportException("@Free is only used on methods that return a String or an array: " + method.getName());
+
+        m_methods.put(method, retType);
+    }
 
-        String strCallReturn = "";
-        String strReturn = "";
+    /**
+     * Write the byte code of a single interface method.
+     * @param method The interface method to implement
+     * @param retType The return type of the method.
+     */
+    private void writeMethod(Method method, Class retType)
+    {
+        Class[] parameters = method.getParameterTypes();
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PUBLIC, method.getName(), methodDescriptor(retType, parameters));
+        Annotation[][] paramAnnotations = method.getParameterAnnotations();
 
-        if (!void.class.equals(retType))
+        // The types passed to the MethodHandle, anything that is not a primitive is passed as a pointer.
+        Class[] callParameters = PassportFactory.downcallType(method).parameterArray();
+        Class callReturn = retType.isPrimitive() ? retType : MemoryAddress.class;
+        boolean[] javaOnly = javaOnlyArguments(method);
+        boolean bHasAllocatedMemory = false;
+
+        for (int n = 0; n < parameters.length; ++n)
         {
-            if (retType.equals(String.class))
-            {
-                strCallReturn = "var ret = (MemoryAddress)";
-                strReturn = "return CLinker.toJavaStringRestricted(ret);";
-            }
-            else
-            {
-                strCallReturn = String.format("var ret = (%s)", retType.getSimpleName());
-                strReturn = "return ret;";
-            }
+            Class parameter = parameters[n];
+            if (!javaOnly[n] && !parameter.isPrimitive() && !MemoryAddress.class.equals(parameter) && !Structs.isView(parameter))
+                bHasAllocatedMemory = true;
         }
 
-        Annotation[][] paramAnnotations = method.getParameterAnnotations();
-        int v = 1;
-        boolean bHasAllocatedMemory = false;
+        // The frame of the exception handler: this, the parameters and the scope
+        List<String> handlerLocals = new ArrayList<>();
+        handlerLocals.add("L" + m_className + ";");
+        Arrays.stream(parameters).map(Class::descriptorString).forEach(handlerLocals::add);
 
-        for (Class parameter : method.getParameterTypes())
+        int scope = -1;
+        if (bHasAllocatedMemory)
         {
-            args.append(String.format("%s v%d,", parameter.getSimpleName(), v));
+            scope = code.newLocal(NativeScope.class);
+            loadHook(code, "open");
+            invokeHook(code, "open")
+                    .store(NativeScope.class, scope);
+            handlerLocals.add(NativeScope.class.descriptorString());
+        }
 
-            if (isArrayOfPrimitives(parameter) || is2DArrayOfPrimitives(parameter))
-            {
-                bHasAllocatedMemory = true;
-                if (isPtrPtrArg(paramAnnotations[v-1]))
-                    preCall.append(String.format("var vv%1$d = Utils.toPtrPTrMS(scope, v%1$d);", v));
-                else
-                    preCall.append(String.format("var vv%1$d = Utils.toMS(scope, v%1$d);\n", v));
+        ClassFileWriter.Label tryStart = new ClassFileWriter.Label();
+        ClassFileWriter.Label tryEnd = new ClassFileWriter.Label();
+        ClassFileWriter.Label handler = new ClassFileWriter.Label();
+        code.mark(tryStart);
 
-                params.append("vv").append(v).append(".address(),");
+        // Convert all of the arguments into native memory
+        int[] converted = new int[parameters.length];
+        for (int n = 0; n < parameters.length; ++n)
+        {
+            // Arguments that are only used in Java are never copied, or read back.
+            // Arguments that are passed as they are keep -1
+            converted[n] = -1;
+            if (javaOnly[n])
+                continue;
 
-                if (isRefArg(paramAnnotations[v-1]))
-                    postCall.append(String.format("Utils.toArr(v%1$d, vv%1$d);\n", v));
+            Class parameter = parameters[n];
+            int v = code.paramSlot(n);
+            checkDirection(method, paramAnnotations[n]);
+            Out out = getOut(paramAnnotations[n]);
+            Length length = getLength(paramAnnotations[n]);
+            if (isCached(paramAnnotations[n]) && !parameter.isRecord())
+                throw new PassportException("@Cached is only supported for Records: " + method.getName());
+            if (length != null && !isArrayOfPrimitives(parameter))
+                throw new PassportException("@Length is only supported for arrays of primitives: " + method.getName());
+
+            if (length != null)
+            {
+                // Only the elements the library uses are copied, or allocated for @Out
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(NativeScope.class, scope);
+                pushRange(code, method, n, length);
+                if (out != null)
+                    code.iconst(out.zero() ? 1 : 0)
+                            .invokestatic(UTILS, "toOutMS", methodDescriptor(MemorySegment.class, NativeScope.class, MemorySegment.class,
+                                    long.class, long.class, long.class, boolean.class), false);
+                else
+                    code.invokestatic(UTILS, "toMS", methodDescriptor(MemorySegment.class, NativeScope.class, MemorySegment.class,
+                                    long.class, long.class, long.class), false);
+                code.store(MemorySegment.class, converted[n]);
+            }
+            else if (isArrayOfPrimitives(parameter) && out != null)
+            {
+                // An output buffer only needs memory, the values in the array are not copied in
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .iconst(out.zero() ? 1 : 0)
+                        .invokestatic(UTILS, "toOutMS", methodDescriptor(MemorySegment.class, NativeScope.class, parameter, boolean.class), false)
+                        .store(MemorySegment.class, converted[n]);
+            }
+            else if (isArrayOfPrimitives(parameter) || isNDArrayOfPrimitives(parameter))
+            {
+                String utilsMethod = isNDArrayOfPrimitives(parameter) && isPtrPtrArg(paramAnnotations[n]) ? "toPtrPTrMS" : "toMS";
+                // Arrays with 3 or more dimensions share one Utils method
+                Class utilsType = is2DArrayOfPrimitives(parameter) || isArrayOfPrimitives(parameter) ? parameter : Object[].class;
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .invokestatic(UTILS, utilsMethod, methodDescriptor(MemorySegment.class, NativeScope.class, utilsType), false)
+                        .store(MemorySegment.class, converted[n]);
+
+                if (isNDArrayOfPrimitives(parameter) && isCopiedBack(paramAnnotations[n]))
+                    throw new PassportException("@RefArg, @InOut and @Out are not supported for arrays with more than one dimension: " + method.getName());
+            }
+            else if (isBuffer(parameter))
+            {
+                // Direct buffers and MemorySegments are passed without a copy
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .invokestatic(UTILS, "toMS", methodDescriptor(MemorySegment.class, NativeScope.class, parameter), false)
+                        .store(MemorySegment.class, converted[n]);
             }
             else if (String.class.equals(parameter))
             {
-                bHasAllocatedMemory = true;
-                tryArgs.append(String.format("var vv%1$d = CLinker.toCString(v%1$d);", v));
-                params.append("vv").append(v).append(".address(),");
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(NativeScope.class, scope)
+                        .load(String.class, v)
+                        .invokestatic(UTILS, "toCString", methodDescriptor(MemorySegment.class, NativeScope.class, String.class), false)
+                        .store(MemorySegment.class, converted[n]);
+            }
+            else if (Structs.isView(parameter))
+            {
+                // A Struct view is already in native memory, its address is passed
+                converted[n] = code.newLocal(MemoryAddress.class);
+                code.load(parameter, v)
+                        .invokeinterface(internalName(Struct.class), "segment", methodDescriptor(MemorySegment.class))
+                        .invokeinterface(MEMORY_SEGMENT, "address", methodDescriptor(MemoryAddress.class))
+                        .store(MemoryAddress.class, converted[n]);
+            }
+            else if (parameter.isRecord() && isCached(paramAnnotations[n]))
+            {
+                if (isCopiedBack(paramAnnotations[n]))
+                    throw new PassportException("@Cached Records can't be read back: " + method.getName());
+
+                converted[n] = code.newLocal(MemoryAddress.class);
+                code.load(Object.class, 0)
+                        .load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .invokevirtual(m_className, "cached" + parameter.getSimpleName(),
+                                methodDescriptor(MemoryAddress.class, NativeScope.class, parameter))
+                        .store(MemoryAddress.class, converted[n]);
             }
             else if (parameter.isRecord())
             {
-                bHasAllocatedMemory = true;
-                preCall.append(String.format("var vv%1$d = store%2$s(scope, v%1$d).address();\n", v, parameter.getSimpleName()));
-                params.append("vv").append(v).append(",");
+                converted[n] = code.newLocal(MemoryAddress.class);
+                code.load(Object.class, 0)
+                        .load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .invokevirtual(m_className, "store" + parameter.getSimpleName(),
+                                methodDescriptor(MemorySegment.class, NativeScope.class, parameter))
+                        .invokeinterface(MEMORY_SEGMENT, "address", methodDescriptor(MemoryAddress.class))
+                        .store(MemoryAddress.class, converted[n]);
+            }
+            else if (parameter.isArray() && Structs.isView(parameter.getComponentType()))
+            {
+                if (out != null)
+                    throw new PassportException("@Out is only supported for arrays of primitives, use @InOut: " + method.getName());
+
+                // The views are copied into one block of structs, they are updated in place after the call.
+                // The size comes from the view at run time because the padding depends on the platform
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .ldcClass(internalName(parameter.getComponentType()))
+                        .invokestatic(internalName(Struct.class), "sizeOf", methodDescriptor(long.class, Class.class), true)
+                        .invokestatic(UTILS, "toStructArray", methodDescriptor(MemorySegment.class, NativeScope.class, Struct[].class, long.class), false)
+                        .store(MemorySegment.class, converted[n]);
             }
             else if (parameter.isArray() && parameter.getComponentType().isRecord())
             {
-                bHasAllocatedMemory = true;
+                if (out != null)
+                    throw new PassportException("@Out is only supported for arrays of primitives, use @InOut: " + method.getName());
+
+                // All of the elements are written into one block of structs
                 Class recordType = parameter.getComponentType();
-                preCall.append(String.format("var vv%1$d = store%2$s(scope, v%1$d[0]);\n", v, recordType.getSimpleName()));
-                params.append("vv").append(v).append(".address(),");
+                converted[n] = code.newLocal(MemorySegment.class);
+                code.load(Object.class, 0)
+                        .load(NativeScope.class, scope)
+                        .load(parameter, v)
+                        .invokevirtual(m_className, "store" + recordType.getSimpleName() + "Array",
+                                methodDescriptor(MemorySegment.class, NativeScope.class, parameter))
+                        .store(MemorySegment.class, converted[n]);
+            }
+        }
 
-                if (isRefArg(paramAnnotations[v-1]))
+        // Call the foreign function
+        code.getstatic(m_className, methodField(method.getName()), MethodHandle.class.descriptorString());
+        for (int n = 0; n < parameters.length; ++n)
+        {
+            Class parameter = parameters[n];
+            if (javaOnly[n])
+                continue;
+            if (converted[n] < 0)
+                code.load(parameter, code.paramSlot(n));
+            else if (parameter.isRecord() || Structs.isView(parameter))
+                code.load(MemoryAddress.class, converted[n]);
+            else
+                code.load(MemorySegment.class, converted[n])
+                        .invokeinterface(MEMORY_SEGMENT, "address", methodDescriptor(MemoryAddress.class));
+        }
+        code.invokevirtual(METHOD_HANDLE, "invokeExact", methodDescriptor(callReturn, callParameters));
+
+        int ret = -1;
+        if (!void.class.equals(retType))
+        {
+            boolean free = method.getAnnotation(Free.class) != null;
+            if (String.class.equals(retType) && free)
+                code.iconst(1)
+                        .invokestatic(UTILS, "toJavaString", methodDescriptor(String.class, MemoryAddress.class, boolean.class), false);
+            else if (String.class.equals(retType))
+                code.invokestatic(CLINKER, "toJavaStringRestricted", methodDescriptor(String.class, MemoryAddress.class), true);
+            else if (retType.isArray())
+            {
+                // The elements are copied into a new array, or the array the caller passed in
+                Length length = method.getAnnotation(Length.class);
+                if (length.offset() != Length.NO_VALUE)
+                    throw new PassportException("@Length offset is only used for arguments: " + method.getName());
+                if (length.into() == Length.NO_VALUE)
+                    code.aconstNull();
+                else
                 {
-                    postCall.append(String.format("v%1$d[0] = read%2$s(vv%1d);", v, recordType.getSimpleName()));
+                    if (length.into() < 0 || length.into() >= parameters.length || !retType.equals(parameters[length.into()]))
+                        throw new PassportException("@Length into must be an argument of the returned type: " + method.getName());
+                    code.load(retType, code.paramSlot(length.into()));
                 }
+                pushCount(code, method, length);
+                code.iconst(free ? 1 : 0)
+                        .invokestatic(UTILS, "toArr", methodDescriptor(retType, MemoryAddress.class, retType, long.class, boolean.class), false);
             }
-            else
-                params.append("v").append(v).append(",");
-            ++v;
+            else if (Structs.isView(retType))
+                code.ldcClass(internalName(retType))
+                        .swap()
+                        .invokestatic(internalName(Struct.class), "at", methodDescriptor(Struct.class, Class.class, MemoryAddress.class), true)
+                        .checkcast(internalName(retType));
+            ret = code.newLocal(retType);
+            code.store(retType, ret);
         }
 
-        args.setLength(args.length() - 1);
-        if (params.length() > 0)
-            params.setLength(params.length() - 1);
-        if (bHasAllocatedMemory)
-            tryArgs.append("var scope = NativeScope.unboundedScope();");
-        if (tryArgs.length() > 0)
-            tryArgs.insert(0, "(").append(")");
-
-        m_source.append(String.format("""
-                                private MethodHandle m_%s;
-                                public %s %s(%s)
-                                {
-                                    try %s {
-                                        %s
-                                        %s m_%s.invokeExact(%s);
-                                        %s
-                                        %s
-                                    }
-                                    catch(Throwable th)
-                                    {
-                                        throw new Error(th);
-                                    }
-                                }
-                                
-                            """,
-                method.getName(),
-                retType.getSimpleName(), method.getName(),args,
-                tryArgs,
-                preCall,
-                strCallReturn, method.getName(), params,
-                postCall,
-                strReturn));
-
-        m_initSource.append(String.format("\t\tm_%s = m_methods.get(\"%s\");\n", method.getName(), method.getName()));
+        // Read back anything that the foreign function could have changed
+        for (int n = 0; n < parameters.length; ++n)
+        {
+            Class parameter = parameters[n];
+            if (javaOnly[n])
+                continue;
+            if (isBuffer(parameter) && !MemorySegment.class.equals(parameter))
+            {
+                // Buffers that had to be copied are updated, unless they are only read
+                if (!isIn(paramAnnotations[n]))
+                    code.load(parameter, code.paramSlot(n))
+                            .load(MemorySegment.class, converted[n])
+                            .invokestatic(UTILS, "toBuffer", methodDescriptor(void.class, parameter, MemorySegment.class), false);
+                continue;
+            }
+
+            if (!isCopiedBack(paramAnnotations[n]))
+                continue;
+
+            Length length = getLength(paramAnnotations[n]);
+            if (length != null)
+            {
+                pushRange(code, method, n, length);
+                code.load(MemorySegment.class, converted[n])
+                        .invokestatic(UTILS, "toArr", methodDescriptor(void.class, MemorySegment.class, long.class, long.class, long.class,
+                                MemorySegment.class), false);
+            }
+            else if (isArrayOfPrimitives(parameter))
+            {
+                code.load(parameter, code.paramSlot(n))
+                        .load(MemorySegment.class, converted[n])
+                        .invokestatic(UTILS, "toArr", methodDescriptor(void.class, parameter, MemorySegment.class), false);
+            }
+            else if (parameter.isArray() && Structs.isView(parameter.getComponentType()))
+            {
+                code.load(parameter, code.paramSlot(n))
+                        .load(MemorySegment.class, converted[n])
+                        .ldcClass(internalName(parameter.getComponentType()))
+                        .invokestatic(internalName(Struct.class), "sizeOf", methodDescriptor(long.class, Class.class), true)
+                        .invokestatic(UTILS, "fromStructArray", methodDescriptor(void.class, Struct[].class, MemorySegment.class, long.class), false);
+            }
+            else if (parameter.isArray() && parameter.getComponentType().isRecord())
+            {
+                Class recordType = parameter.getComponentType();
+                code.load(Object.class, 0)
+                        .load(NativeScope.class, scope)
+                        .load(parameter, code.paramSlot(n))
+                        .load(MemorySegment.class, converted[n])
+                        .invokevirtual(m_className, "read" + recordType.getSimpleName() + "Array",
+                                methodDescriptor(void.class, NativeScope.class, parameter, MemorySegment.class));
+            }
+        }
+        code.mark(tryEnd);
+
+        if (scope >= 0)
+            code.load(NativeScope.class, scope).invokeinterface(NATIVE_SCOPE, "close", methodDescriptor(void.class));
+        if (ret >= 0)
+            code.load(retType, ret);
+        code.returnValue(retType);
+
+        // catch(Throwable th) { throw new Error(th); }
+        code.mark(handler).frame(handlerLocals, List.of(Throwable.class.descriptorString()));
+        int th = code.newLocal(Throwable.class);
+        code.store(Throwable.class, th);
+        if (scope >= 0)
+            code.load(NativeScope.class, scope).invokeinterface(NATIVE_SCOPE, "close", methodDescriptor(void.class));
+        code.newObject(ERROR)
+                .dup()
+                .load(Throwable.class, th)
+                .invokespecial(ERROR, "<init>", methodDescriptor(void.class, Throwable.class))
+                .athrow();
+        code.tryCatch(tryStart, tryEnd, handler, THROWABLE);
+        code.end();
+
+        addStaticField(methodField(method.getName()), MethodHandle.class);
+    }
+
+    /**
+     * Push the arguments of a Utils method that copies part of an array: a heap segment of the array, the offset,
+     * the count and the size of an element.
+     *
+     * @param code The method being written.
+     * @param method The interface method.
+     * @param n The index of the array argument.
+     * @param length The @Length of the array.
+     */
+    private void pushRange(ClassFileWriter.Code code, Method method, int n, Length length)
+    {
+        Class parameter = method.getParameterTypes()[n];
+        code.load(parameter, code.paramSlot(n))
+                .invokestatic(MEMORY_SEGMENT, "ofArray", methodDescriptor(MemorySegment.class, parameter), true);
+        if (length.into() != Length.NO_VALUE)
+            throw new PassportException("@Length into is only used for returned arrays: " + method.getName());
+        if (length.offset() == Length.NO_VALUE)
+            code.lconst(0);
+        else
+            pushIndexArgument(code, method, length.offset());
+        pushCount(code, method, length);
+        code.lconst(Structs.primitiveLayout(parameter.getComponentType()).byteSize());
+    }
+
+    /**
+     * Push the number of elements given by @Length on to the stack as a long. For a returned array that is
+     * copied into an argument the length of that array is used if no count is given.
+     */
+    private void pushCount(ClassFileWriter.Code code, Method method, Length length)
+    {
+        if (length.value() != Length.NO_VALUE)
+            pushIndexArgument(code, method, length.value());
+        else if (length.constant() != Length.NO_VALUE)
+            code.lconst(length.constant());
+        else if (length.into() != Length.NO_VALUE)
+            code.load(method.getReturnType(), code.paramSlot(length.into()))
+                    .arraylength()
+                    .i2l();
+        else
+            throw new PassportException("@Length needs the argument that holds the count, or a constant: " + method.getName());
+    }
+
+    /**
+     * Push an integer argument named by @Length on to the stack as a long.
+     */
+    private void pushIndexArgument(ClassFileWriter.Code code, Method method, int index)
+    {
+        Class[] parameters = method.getParameterTypes();
+        if (index < 0 || index >= parameters.length)
+            throw new PassportException("@Length refers to argument " + index + " but " + method.getName() + " has " +
+                    parameters.length + " arguments");
+
+        Class type = parameters[index];
+        if (!byte.class.equals(type) && !short.class.equals(type) && !int.class.equals(type) && !long.class.equals(type))
+            throw new PassportException("@Length arguments must be byte, short, int or long: " + method.getName());
+
+        code.load(type, code.paramSlot(index));
+        if (!long.class.equals(type))
+            code.i2l();
+    }
+
+    /**
+     * @param interfaceClass A Passport interface.
+     * @return The name of the class PassportGenerator writes for the interface at build time.
+     */
+    static String prebuiltClassName(Class<?> interfaceClass)
+    {
+        return interfaceClass.getName() + "_impl";
     }
 
     T build(Map<String, MethodHandle> methods) throws Throwable
     {
-        m_initSource.append("\t}");
-        m_source.append(m_initSource);
-        m_source.append("\n}");
+        Map<String, Object> classData = new HashMap<>();
+        methods.forEach((name, handle) -> classData.put(methodField(name), handle));
+        Hooks.forEach((hook, handle) -> classData.put(hookField(hook), handle));
+        m_layouts.forEach((c, layout) -> {
+            classData.put(sizeField(c), layout.byteSize());
+            for (String member : memberNames(layout))
+                classData.put(offsetField(c, member), layout.byteOffset(PathElement.groupElement(member)));
+        });
+
+        // A class written by PassportGenerator at build time only needs the MethodHandles and layouts
+        Class<T> foreignImpl = findPrebuiltClass();
+
+        if (foreignImpl != null)
+            Pending_Class_Data.put(foreignImpl, classData);
+        else if (m_buildRoot == null)
+            foreignImpl = defineCachedClass(classData);
+        else
+        {
+            foreignImpl = defineFromBuildFolder(writeClass());
+            Pending_Class_Data.put(foreignImpl, classData);
+        }
 
-        Path buildRoot = Utils.getBuildFolder();
-        Path sourceRoot = buildRoot.resolve("jpassport").resolve("called_" + m_ID);
-        if (Files.exists(sourceRoot))
-            Utils.deleteFolder(sourceRoot);
-        Files.createDirectories(sourceRoot);
-        Path sourceFile = sourceRoot.resolve(m_className + ".java");
-        Files.writeString(sourceFile, m_source);
-        Path moduleFile = buildRoot.resolve("module-info.java");
-        Files.writeString(moduleFile, m_moduleSource);
+        return foreignImpl.getDeclaredConstructor().newInstance();
+    }
 
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        compiler.run(null, null, null,
-                "--module-path", System.getProperty("jdk.module.path"),
-                moduleFile.toString(), sourceFile.toString());
+    /**
+     * Called from the static initializer of a generated class to get its MethodHandles and layouts.
+     *
+     * @param generated The generated class.
+     * @return The class data, or null if there isn't any.
+     */
+    static Map<String, Object> takeClassData(Class<?> generated)
+    {
+        return Pending_Class_Data.remove(generated);
+    }
 
-        URLClassLoader classLoader = URLClassLoader.newInstance(new URL[] {buildRoot.toUri().toURL()});
-        Class<T> foreignImpl = (Class<T>) Class.forName(m_fullClassName, true, classLoader);
-        return foreignImpl.getDeclaredConstructor(methods.getClass()).newInstance(methods);
+    /**
+     * Define the class as a hidden class, using the class file in the ClassCache if there is one.
+     */
+    private Class<T> defineCachedClass(Map<String, Object> classData) throws IllegalAccessException
+    {
+        String cacheKey = ClassCache.getKey(m_interfaceClass, m_methods.keySet(), m_layouts);
+        byte[] cached = cacheKey == null ? null : ClassCache.find(cacheKey);
+        if (cached != null)
+        {
+            try {
+                return defineHiddenClass(cached, classData);
+            }
+            catch (LinkageError ex) {
+                // A damaged cache entry, build the class again and replace it
+            }
+        }
+
+        byte[] classBytes = writeClass();
+        Class<T> foreignImpl = defineHiddenClass(classBytes, classData);
+        if (cacheKey != null)
+            ClassCache.store(cacheKey, classBytes);
+        return foreignImpl;
+    }
+
+    /**
+     * The MethodHandles of a class are static, so a class built ahead of time can only be used for the first link
+     * of its interface. Later links of the interface (to another library, or after PassportFactory.evict()) get
+     * a hidden class.
+     *
+     * @return The class written for the interface at build time, or null if there isn't one that can be used.
+     */
+    private Class<T> findPrebuiltClass()
+    {
+        try {
+            Class<?> prebuilt = Class.forName(prebuiltClassName(m_interfaceClass), false, m_interfaceClass.getClassLoader());
+            if (m_interfaceClass.isAssignableFrom(prebuilt) && Linked_Prebuilt.add(prebuilt))
+                return (Class<T>) prebuilt;
+        }
+        catch (ClassNotFoundException ex) {
+            // Not built ahead of time
+        }
+        return null;
     }
 
-    private boolean isRefArg(Annotation[] paramAnnotations)
+    /**
+     * Define the class in memory as a hidden class in the jpassport package. Nothing is written to disk, and
+     * the class can be unloaded as soon as the Passport object that uses it is no longer reachable.
+     */
+    private Class<T> defineHiddenClass(byte[] classBytes, Map<String, Object> classData) throws IllegalAccessException
+    {
+        // The hidden class lives in this module so this module must be able to read the interface and Records
+        Module module = ClassWriter.class.getModule();
+        module.addReads(m_interfaceClass.getModule());
+        for (Method m : m_methods.keySet())
+        {
+            Arrays.stream(m.getParameterTypes()).filter(Structs::isView).forEach(c -> module.addReads(c.getModule()));
+            if (Structs.isView(m.getReturnType()))
+                module.addReads(m.getReturnType().getModule());
+        }
+        for (Class c : m_layouts.keySet())
+            module.addReads(c.getModule());
+
+        return (Class<T>) MethodHandles.lookup().defineHiddenClassWithClassData(classBytes, classData, true).lookupClass();
+    }
+
+    /**
+     * Write the class file into the build folder and load it from there. This is only done if
+     * jpassport.build.home is set, it lets you look at the generated classes.
+     */
+    private Class<T> defineFromBuildFolder(byte[] classBytes) throws Exception
     {
-        return Arrays.stream(paramAnnotations).map(Annotation::annotationType).anyMatch(RefArg.class::equals);
+        Path classRoot = m_buildRoot.resolve("jpassport").resolve("called_" + m_ID);
+        if (Files.exists(classRoot))
+            Utils.deleteFolder(classRoot);
+        Files.createDirectories(classRoot);
+        Files.write(classRoot.resolve(m_interfaceClass.getSimpleName() + "_impl.class"), classBytes);
+
+        URLClassLoader classLoader = URLClassLoader.newInstance(new URL[] {m_buildRoot.toUri().toURL()}, m_interfaceClass.getClassLoader());
+        return (Class<T>) Class.forName(m_fullClassName, false, classLoader);
+    }
+
+    /**
+     * @return True if the argument should be read back after the call.
+     */
+    private boolean isCopiedBack(Annotation[] paramAnnotations)
+    {
+        return Arrays.stream(paramAnnotations).map(Annotation::annotationType)
+                .anyMatch(type -> RefArg.class.equals(type) || InOut.class.equals(type) || Out.class.equals(type));
+    }
+
+    private boolean isCached(Annotation[] paramAnnotations)
+    {
+        return Arrays.stream(paramAnnotations).map(Annotation::annotationType).anyMatch(Cached.class::equals);
+    }
+
+    private boolean isIn(Annotation[] paramAnnotations)
+    {
+        return Arrays.stream(paramAnnotations).map(Annotation::annotationType).anyMatch(In.class::equals);
+    }
+
+    private static Length getLength(Annotation[] paramAnnotations)
+    {
+        return Arrays.stream(paramAnnotations).filter(Length.class::isInstance).map(Length.class::cast).findFirst().orElse(null);
+    }
+
+    /**
+     * @param method An interface method.
+     * @return True for the arguments that are only used in Java: the offset of a @Length array and the array a
+     * returned array is copied into. They are not passed to the library.
+     */
+    static boolean[] javaOnlyArguments(Method method)
+    {
+        boolean[] javaOnly = new boolean[method.getParameterCount()];
+        for (Annotation[] annotations : method.getParameterAnnotations())
+        {
+            Length length = getLength(annotations);
+            if (length != null && length.offset() >= 0 && length.offset() < javaOnly.length)
+                javaOnly[length.offset()] = true;
+        }
+
+        Length returned = method.getAnnotation(Length.class);
+        if (returned != null && returned.into() >= 0 && returned.into() < javaOnly.length)
+            javaOnly[returned.into()] = true;
+        return javaOnly;
+    }
+
+    private Out getOut(Annotation[] paramAnnotations)
+    {
+        return Arrays.stream(paramAnnotations).filter(Out.class::isInstance).map(Out.class::cast).findFirst().orElse(null);
+    }
+
+    private void checkDirection(Method method, Annotation[] paramAnnotations)
+    {
+        long directions = Arrays.stream(paramAnnotations).map(Annotation::annotationType)
+                .filter(type -> In.class.equals(type) || Out.class.equals(type) || InOut.class.equals(type) || RefArg.class.equals(type))
+                .count();
+        if (directions > 1)
+            throw new PassportException("Only one of @In, @Out, @InOut or @RefArg can be used on an argument: " + method.getName());
     }
 
     private boolean isPtrPtrArg(Annotation[] paramAnnotations)
@@ -469,6 +1338,16 @@ public class ClassWriter <T extends Passport>
         return Arrays.stream(paramAnnotations).map(Annotation::annotationType).anyMatch(PtrPtrArg.class::equals);
     }
 
+    /**
+     * @return True for MemorySegment and the NIO buffers that can be passed to C.
+     */
+    static boolean isBuffer(Class c)
+    {
+        return MemorySegment.class.equals(c) || ByteBuffer.class.equals(c) || ShortBuffer.class.equals(c) ||
+                IntBuffer.class.equals(c) || LongBuffer.class.equals(c) || FloatBuffer.class.equals(c) ||
+                DoubleBuffer.class.equals(c);
+    }
+
     private boolean isArrayOfPrimitives(Class c)
     {
         return c.isArray() && c.getComponentType().isPrimitive();
@@ -478,4 +1357,13 @@ public class ClassWriter <T extends Passport>
     {
         return c.isArray() && c.getComponentType().isArray() && isArrayOfPrimitives(c.getComponentType());
     }
+
+    /**
+     * @return True for arrays of primitives with 2 or more dimensions.
+     */
+    private boolean isNDArrayOfPrimitives(Class c)
+    {
+        return c.isArray() && c.getComponentType().isArray() &&
+                (isArrayOfPrimitives(c.getComponentType()) || isNDArrayOfPrimitives(c.getComponentType()));
+    }
 }
@@ -0,0 +1,85 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.LibraryLookup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+
+/**
+ * A MethodHandle that looks up its library symbol and builds the real downcall handle the first time it is
+ * called. The handle has the same type as the downcall handle so the generated class can't tell the
+ * difference. Once the downcall has been built the call site is pointed straight at it, so later calls
+ * don't go through this class at all.
+ */
+final class LazyDowncall
+{
+    private static final MethodHandle LINK;
+
+    static
+    {
+        try {
+            LINK = MethodHandles.lookup().findVirtual(LazyDowncall.class, "link", MethodType.methodType(Object.class, Object[].class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new PassportException(ex.getMessage());
+        }
+    }
+
+    private final LibraryLookup m_lookup;
+    private final Method m_method;
+    private final MutableCallSite m_site;
+    private volatile MethodHandle m_downcall = null;
+
+    /**
+     * @param lookup The library the symbol will be looked up in.
+     * @param method The interface method.
+     * @return A MethodHandle that links the method on its first call.
+     */
+    static MethodHandle create(LibraryLookup lookup, Method method)
+    {
+        return new LazyDowncall(lookup, method).m_site.dynamicInvoker();
+    }
+
+    private LazyDowncall(LibraryLookup lookup, Method method)
+    {
+        m_lookup = lookup;
+        m_method = method;
+
+        MethodType type = PassportFactory.downcallType(method);
+        m_site = new MutableCallSite(type);
+        m_site.setTarget(LINK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+    }
+
+    private Object link(Object[] args) throws Throwable
+    {
+        MethodHandle downcall = m_downcall;
+        if (downcall == null)
+        {
+            synchronized (this)
+            {
+                if (m_downcall == null)
+                {
+                    m_downcall = PassportFactory.downcallHandle(m_lookup, m_method);
+                    m_site.setTarget(m_downcall);
+                }
+                downcall = m_downcall;
+            }
+        }
+
+        return downcall.invokeWithArguments(args);
+    }
+}
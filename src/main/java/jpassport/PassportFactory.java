@@ -15,27 +15,37 @@ import jdk.incubator.foreign.*;
 import jpassport.annotations.PtrPtrArg;
 import jpassport.annotations.RefArg;
 
-import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
 import java.lang.annotation.Annotation;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class PassportFactory
 {
-    private static int Class_ID = 1;
+    // The linked instances are stored with the interface class so that they don't keep a class loader
+    // that could otherwise be unloaded alive.
+    private static final ClassValue<Map<LinkKey, Passport>> Linked_Instances = new ClassValue<>()
+    {
+        @Override
+        protected Map<LinkKey, Passport> computeValue(Class<?> type)
+        {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private record LinkKey(String libraryName, boolean lazy) {}
 
     /**
-     * Call this method to generate the library linkage.
+     * Call this method to generate the library linkage. This method is thread safe, every call builds its
+     * class with its own state so links of different interfaces can run in parallel.
+     *
+     * Linking the same interface to the same library again returns the instance that was already linked
+     * until it is removed with evict().
      *
      * @param libraryName The library name (the file name of the shared library without extension on all platforms,
      *                    without lib prefix on Linux and Mac).
@@ -43,61 +53,174 @@ public class PassportFactory
      * @param <T>
      * @return A class linked to call into a DLL or SO using the Foreign Linker.
      */
-    public synchronized static <T extends Passport> T link(String libraryName, Class<T> interfaceClass) throws Throwable
+    public static <T extends Passport> T link(String libraryName, Class<T> interfaceClass) throws Throwable
     {
         if (!Passport.class.isAssignableFrom(interfaceClass)) {
             throw new IllegalArgumentException("Interface (" + interfaceClass.getSimpleName() + ") of library=" + libraryName + " does not extend " + Passport.class.getSimpleName());
         } else {
-            return buildClass(libraryName, interfaceClass);
+            return linkCached(libraryName, interfaceClass, false);
         }
     }
 
-    private static <T extends Passport> T buildClass(String libName, Class<T> interfaceClass) throws Throwable
+    /**
+     * Works like link() except that the library symbol for each method is only looked up, and its
+     * downcall MethodHandle only built, the first time the method is called. This makes linking large
+     * interfaces where only a few methods are used much cheaper. A method that is missing from the library
+     * only fails when it is called.
+     *
+     * @param libraryName The library name (the file name of the shared library without extension on all platforms,
+     *                    without lib prefix on Linux and Mac).
+     * @param interfaceClass The class to wrap.
+     * @param <T>
+     * @return A class linked to call into a DLL or SO using the Foreign Linker.
+     */
+    public static <T extends Passport> T linkLazy(String libraryName, Class<T> interfaceClass) throws Throwable
+    {
+        if (!Passport.class.isAssignableFrom(interfaceClass)) {
+            throw new IllegalArgumentException("Interface (" + interfaceClass.getSimpleName() + ") of library=" + libraryName + " does not extend " + Passport.class.getSimpleName());
+        } else {
+            return linkCached(libraryName, interfaceClass, true);
+        }
+    }
+
+    /**
+     * Forget the instances linked for an interface and library, the next call to link() or linkLazy() builds
+     * a new one. Instances that have already been handed out keep working and are unloaded once they are no
+     * longer used.
+     *
+     * @param libraryName The library name that was passed to link().
+     * @param interfaceClass The interface that was linked.
+     */
+    public static void evict(String libraryName, Class<? extends Passport> interfaceClass)
+    {
+        Map<LinkKey, Passport> linked = Linked_Instances.get(interfaceClass);
+        linked.remove(new LinkKey(libraryName, false));
+        linked.remove(new LinkKey(libraryName, true));
+    }
+
+    /**
+     * Forget the instances linked for an interface with any library.
+     *
+     * @param interfaceClass The interface that was linked.
+     */
+    public static void evict(Class<? extends Passport> interfaceClass)
+    {
+        Linked_Instances.remove(interfaceClass);
+    }
+
+    private static <T extends Passport> T linkCached(String libraryName, Class<T> interfaceClass, boolean lazy) throws Throwable
+    {
+        Map<LinkKey, Passport> linked = Linked_Instances.get(interfaceClass);
+        LinkKey key = new LinkKey(libraryName, lazy);
+
+        Passport passport = linked.get(key);
+        if (passport == null)
+        {
+            // Two threads may link at the same time, only the first one to finish is kept.
+            Passport built = buildClass(libraryName, interfaceClass, lazy);
+            passport = linked.putIfAbsent(key, built);
+            if (passport == null)
+                passport = built;
+        }
+        return interfaceClass.cast(passport);
+    }
+
+    /**
+     * Write the class file that implements an interface without linking it to a library. This is used by
+     * PassportGenerator to build classes ahead of time.
+     *
+     * @param interfaceClass The class to wrap.
+     * @return The class file.
+     */
+    static byte[] generate(Class<? extends Passport> interfaceClass)
+    {
+        List<Method> interfaceMethods = getInterfaceMethods(interfaceClass);
+        Set<Class> extraImports = findAllExtraImports(interfaceMethods);
+        ClassWriter classWriter = new ClassWriter(interfaceClass, extraImports, ClassWriter.prebuiltClassName(interfaceClass));
+
+        for (Method method : interfaceMethods)
+            classWriter.addMethod(method, method.getReturnType());
+
+        return classWriter.writeClass();
+    }
+
+    private static List<Method> getInterfaceMethods(Class<?> interfaceClass)
     {
-        LibraryLookup libLookup = LibraryLookup.ofLibrary(libName);
         Method[] methods = interfaceClass.getDeclaredMethods();
+        return Arrays.stream(methods).filter(method -> (method.getModifiers() & Modifier.STATIC) == 0).toList();
+    }
 
-        List<Method> interfaceMethods = Arrays.stream(methods).filter(method -> (method.getModifiers() & Modifier.STATIC) == 0).toList();
+    private static <T extends Passport> T buildClass(String libName, Class<T> interfaceClass, boolean lazy) throws Throwable
+    {
+        LibraryLookup libLookup = LibraryLookup.ofLibrary(libName);
+
+        List<Method> interfaceMethods = getInterfaceMethods(interfaceClass);
         Set<Class> extraImports = findAllExtraImports(interfaceMethods);
         ClassWriter classWriter = new ClassWriter(interfaceClass, extraImports);
         Map<String, MethodHandle> methodMap = new HashMap<>();
 
         for (Method method : interfaceMethods) {
-            LibraryLookup.Symbol symb = libLookup.lookup(method.getName()).orElse(null);
-            if (symb == null)
-                throw new IllegalArgumentException("Method not found in library: " + method.getName());
+            MethodHandle methodHandle;
+            if (lazy)
+                methodHandle = LazyDowncall.create(libLookup, method);
+            else
+                methodHandle = downcallHandle(libLookup, method);
 
-            Class retType = method.getReturnType();
-            Class[] parameters = method.getParameterTypes();
-            Class methRet = retType;
+            classWriter.addMethod(method, method.getReturnType());
 
-            if (!methRet.isPrimitive())
-                methRet= MemoryAddress.class;
+            methodMap.put(method.getName(), methodHandle);
+        }
+
+        return (T)classWriter.build(methodMap);
+    }
 
-            for (int n = 0; n < parameters.length; ++n) {
-                if (!parameters[n].isPrimitive())
-                    parameters[n] = MemoryAddress.class;
-            }
+    /**
+     * @param method An interface method
+     * @return The type of the MethodHandle that calls the foreign function. Anything that is not
+     * a primitive is passed as a MemoryAddress. Arguments that are only used in Java, like the offset
+     * of a @Length array, are left out.
+     */
+    static MethodType downcallType(Method method)
+    {
+        Class methRet = method.getReturnType();
+        Class[] parameters = method.getParameterTypes();
+        boolean[] javaOnly = ClassWriter.javaOnlyArguments(method);
 
-            MemoryLayout[] memoryLayout = Arrays.stream(parameters).map(PassportFactory::classToMemory).toArray(MemoryLayout[]::new);
+        if (!methRet.isPrimitive())
+            methRet= MemoryAddress.class;
 
-            FunctionDescriptor fd;
-            if (void.class.equals(retType))
-                fd = FunctionDescriptor.ofVoid(memoryLayout);
-            else
-                fd = FunctionDescriptor.of(classToMemory(retType), memoryLayout);
+        List<Class<?>> callParameters = new ArrayList<>();
+        for (int n = 0; n < parameters.length; ++n) {
+            if (!javaOnly[n])
+                callParameters.add(parameters[n].isPrimitive() ? parameters[n] : MemoryAddress.class);
+        }
 
-            MethodHandle methodHandle = CLinker.getInstance().
-                    downcallHandle(symb.address(),
-                            MethodType.methodType(methRet, parameters),
-                            fd);
+        return MethodType.methodType(methRet, callParameters);
+    }
 
-            classWriter.addMethod(method, retType);
+    /**
+     * Look up the symbol for a method in the library and build the MethodHandle that calls it.
+     *
+     * @param libLookup The library to look in.
+     * @param method The interface method.
+     * @return The downcall MethodHandle.
+     */
+    static MethodHandle downcallHandle(LibraryLookup libLookup, Method method)
+    {
+        LibraryLookup.Symbol symb = libLookup.lookup(method.getName()).orElse(null);
+        if (symb == null)
+            throw new IllegalArgumentException("Method not found in library: " + method.getName());
 
-            methodMap.put(method.getName(), methodHandle);
-        }
+        MethodType methodType = downcallType(method);
+        MemoryLayout[] memoryLayout = methodType.parameterList().stream().map(PassportFactory::classToMemory).toArray(MemoryLayout[]::new);
 
-        return (T)classWriter.build(methodMap);
+        FunctionDescriptor fd;
+        if (void.class.equals(method.getReturnType()))
+            fd = FunctionDescriptor.ofVoid(memoryLayout);
+        else
+            fd = FunctionDescriptor.of(classToMemory(method.getReturnType()), memoryLayout);
+
+        return CLinker.getInstance().downcallHandle(symb.address(), methodType, fd);
     }
 
     /**
@@ -114,14 +237,19 @@ public class PassportFactory
             Class[] params = m.getParameterTypes();
 
             if (!isValidArgType(retType))
-                throw new PassportException("Types in the interface must by primitive, arrays of primitives, String, or Records. " + retType.getSimpleName() + " not supported.");
+                throw new PassportException("Types in the interface must by primitive, arrays of primitives, String, buffers, Records or Struct views. " + retType.getSimpleName() + " not supported.");
 
             List<Class> invalid = Arrays.stream(params).filter(p -> !isValidArgType(p)).collect(Collectors.toList());
             if (!invalid.isEmpty())
-                throw new PassportException("Types in the interface must by primitive, arrays of primitives, String, or Records. " + invalid.get(0).getSimpleName() + " not supported.");
+                throw new PassportException("Types in the interface must by primitive, arrays of primitives, String, buffers, Records or Struct views. " + invalid.get(0).getSimpleName() + " not supported.");
 
             if (retType.isRecord() || (retType.isArray() && retType.getComponentType().isRecord()))
                 extraImports.add(retType);
+
+            // Struct views are written when they are first used, building the layout now reports mistakes at link time
+            if (Structs.isView(retType))
+                Struct.sizeOf(retType);
+            Arrays.stream(params).map(p -> p.isArray() ? p.getComponentType() : p).filter(Structs::isView).forEach(Struct::sizeOf);
             Arrays.stream(params).filter(Class::isRecord).forEach(extraImports::add);
             Arrays.stream(params).filter(Class::isArray).map(Class::getComponentType).filter(Class::isRecord).forEach(extraImports::add);
         }
@@ -129,11 +257,13 @@ public class PassportFactory
         extraImports.remove(String.class);
         extraImports.remove(MemoryAddress.class);
         //In case any of the Records are made up of Records then this will pick those up to
+        Set<Class> subRecords = new HashSet<>();
         for (Class c : extraImports)
         {
             if (c.isRecord())
-                extraImports.addAll(findSubRecords(c));
+                subRecords.addAll(findSubRecords(c));
         }
+        extraImports.addAll(subRecords);
 
         return extraImports;
     }
@@ -143,27 +273,36 @@ public class PassportFactory
      * @param record A record class to search for other records
      * @return All of the sub-Records.
      */
-    static Set findSubRecords(Class record)
+    static Set<Class> findSubRecords(Class record)
     {
         Set<Class> subRecords = new HashSet<>();
+        findSubRecords(record, subRecords);
+        return subRecords;
+    }
+
+    /**
+     * @param record A record class to search for other records
+     * @param found The Records found so far, a Record that is already in it isn't searched again so that
+     *              Records that point to themselves don't recurse forever.
+     */
+    private static void findSubRecords(Class record, Set<Class> found)
+    {
         for (Field f : record.getDeclaredFields()) {
-            if (f.getType().isRecord())
-            {
-                subRecords.add(f.getType());
-                subRecords.addAll(findSubRecords(f.getType()));
-            }
+            if (f.getType().isRecord() && found.add(f.getType()))
+                findSubRecords(f.getType(), found);
         }
-        return subRecords;
     }
 
     /**
      * At the moment the only argument types that are supported are:
      * Primitive
      * Primitive[]
-     * Primitive[][]
+     * Primitive[][], Primitive[][][] and deeper
      * Record
      * String
      * MemoryAddress
+     * MemorySegment, ByteBuffer and the typed NIO buffers
+     * Struct views
      *
      * @param c The type to check
      * @return Is the type something we can work with
@@ -174,11 +313,17 @@ public class PassportFactory
             return true;
         if (c.isRecord())
             return true;
-        if (c.isArray() && (c.componentType().isPrimitive() || c.getComponentType().isRecord()))
+        if (c.isArray() && (c.componentType().isPrimitive() || c.getComponentType().isRecord() || Structs.isView(c.getComponentType())))
             return true;
         if (MemoryAddress.class.equals(c) || String.class.equals(c))
             return true;
-        return c.isArray() && c.getComponentType().isArray() && c.getComponentType().getComponentType().isPrimitive();
+        if (ClassWriter.isBuffer(c))
+            return true;
+        if (Structs.isView(c))
+            return true;
+        while (c.isArray() && c.getComponentType().isArray())
+            c = c.getComponentType();
+        return c.isArray() && c.getComponentType().isPrimitive();
     }
 
     private static MemoryLayout classToMemory(Class type)
@@ -0,0 +1,66 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the classes that implement Passport interfaces at build time. Run it after your interfaces
+ * have been compiled and point it at your compiler output folder, the classes are then packaged with
+ * the rest of your code. When PassportFactory.link() finds one of these classes it uses it instead of
+ * generating a class at run time, so linking only has to look up the library symbols.
+ *
+ * java -cp [jpassport and your classes] jpassport.PassportGenerator [output folder] [interface class]...
+ *
+ * The classes are written into the package of the interface, so your module also needs to read
+ * jdk.incubator.foreign.
+ */
+public class PassportGenerator
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: PassportGenerator <output folder> <interface class>...");
+            System.exit(1);
+        }
+
+        Path outputFolder = Path.of(args[0]);
+        for (int n = 1; n < args.length; ++n)
+        {
+            Class<?> interfaceClass = Class.forName(args[n]);
+            if (!Passport.class.isAssignableFrom(interfaceClass))
+                throw new IllegalArgumentException("Interface (" + interfaceClass.getSimpleName() + ") does not extend " + Passport.class.getSimpleName());
+
+            Path written = write(outputFolder, interfaceClass.asSubclass(Passport.class));
+            System.out.println("Wrote " + written);
+        }
+    }
+
+    /**
+     * Write the class that implements a Passport interface.
+     *
+     * @param outputFolder The root folder to write the class file to.
+     * @param interfaceClass The interface to implement.
+     * @return The class file that was written.
+     */
+    public static Path write(Path outputFolder, Class<? extends Passport> interfaceClass) throws IOException
+    {
+        byte[] classBytes = PassportFactory.generate(interfaceClass);
+        Path classFile = outputFolder.resolve(ClassWriter.prebuiltClassName(interfaceClass).replace('.', '/') + ".class");
+        Files.createDirectories(classFile.getParent());
+        Files.write(classFile, classBytes);
+        return classFile;
+    }
+}
@@ -0,0 +1,167 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.NativeScope;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The native copies of @Cached Record arguments. Records are looked up by identity, not by equals(), and
+ * are only weakly held so a copy is freed once its Record has been garbage collected. The cache keeps the most
+ * recently used copies, the oldest copy is dropped when it is full.
+ *
+ * Each thread has its own cache, the same as CallArena, so native memory is only used by the thread that
+ * made it. A copy that is dropped during a call is freed when the call ends because its address may already
+ * have been passed to the library.
+ *
+ * Generated classes get find(), newScope() and add() as MethodHandles in their class data.
+ */
+final class RecordCache
+{
+    private static final int MAX_ENTRIES = Integer.getInteger("jpassport.cached.records", 256);
+    // Most Records only need a few hundred bytes, the scope grows if they have Strings or pointers
+    private static final long ENTRY_SIZE = 256;
+    private static final ThreadLocal<RecordCache> Caches = ThreadLocal.withInitial(RecordCache::new);
+
+    private final ReferenceQueue<Object> m_collected = new ReferenceQueue<>();
+    private final LinkedHashMap<Object, Entry> m_entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Reused by find() so a lookup doesn't allocate
+    private final Lookup m_lookup = new Lookup();
+
+    private record Entry(NativeScope owner, MemoryAddress address) {}
+
+    /**
+     * A weak reference that is equal to another Key for the same object.
+     */
+    private static final class Key extends WeakReference<Object>
+    {
+        private final int m_hash;
+
+        Key(Object record, ReferenceQueue<Object> queue)
+        {
+            super(record, queue);
+            m_hash = System.identityHashCode(record);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            Object record = get();
+            if (o instanceof Key other)
+                return record != null && record == other.get();
+            return o instanceof Lookup lookup && record != null && record == lookup.m_record;
+        }
+    }
+
+    /**
+     * A strong key that is equal to the Key of its object, it is only used to look up a Key.
+     */
+    private static final class Lookup
+    {
+        private Object m_record;
+        private int m_hash;
+
+        @Override
+        public int hashCode()
+        {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Key key && m_record != null && m_record == key.get();
+        }
+    }
+
+    private RecordCache() {}
+
+    /**
+     * @param scope The scope of the call.
+     * @param record A Record argument.
+     * @return The address of the native copy of the Record, or null if it hasn't been copied.
+     */
+    static MemoryAddress find(NativeScope scope, Object record)
+    {
+        RecordCache cache = Caches.get();
+        cache.expunge(scope);
+        Lookup lookup = cache.m_lookup;
+        lookup.m_record = record;
+        lookup.m_hash = System.identityHashCode(record);
+        Entry entry = cache.m_entries.get(lookup);
+        // The lookup must not keep the Record alive
+        lookup.m_record = null;
+        return entry == null ? null : entry.address();
+    }
+
+    /**
+     * @return A new scope for the native copy of a Record and everything it points to.
+     */
+    static NativeScope newScope()
+    {
+        return CallArena.create(ENTRY_SIZE);
+    }
+
+    /**
+     * Keep the native copy of a Record.
+     *
+     * @param scope The scope of the call.
+     * @param record The Record argument.
+     * @param owner The scope from newScope() the copy was made in.
+     * @param segment The native copy.
+     * @return The address of the native copy.
+     */
+    static MemoryAddress add(NativeScope scope, Object record, NativeScope owner, MemorySegment segment)
+    {
+        RecordCache cache = Caches.get();
+        MemoryAddress address = segment.address();
+        Entry old = cache.m_entries.put(new Key(record, cache.m_collected), new Entry(owner, address));
+        if (old != null)
+            CallArena.retire(scope, old.owner());
+
+        if (cache.m_entries.size() > MAX_ENTRIES)
+        {
+            Iterator<Entry> eldest = cache.m_entries.values().iterator();
+            CallArena.retire(scope, eldest.next().owner());
+            eldest.remove();
+        }
+        return address;
+    }
+
+    /**
+     * Drop the copies of Records that have been garbage collected.
+     */
+    private void expunge(NativeScope scope)
+    {
+        for (Reference<?> key = m_collected.poll(); key != null; key = m_collected.poll())
+        {
+            Entry entry = m_entries.remove(key);
+            if (entry != null)
+                CallArena.retire(scope, entry.owner());
+        }
+    }
+}
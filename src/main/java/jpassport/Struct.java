@@ -0,0 +1,80 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.NativeScope;
+
+/**
+ * A C struct that is used where it is in native memory instead of being copied into a Record.
+ * Extend this interface with a getter, and optionally a setter, for every member of the struct and list the
+ * members in order with @StructMembers. JPassport writes the implementation: every getter and setter reads or
+ * writes its member straight from native memory, so only the members that are used are touched.
+ *
+ * Members can be primitives, arrays of primitives with @Array, Strings (read only) or other Struct views.
+ * A Struct view member with @Ptr is a pointer, it is only followed when its getter is called.
+ *
+ * Struct views can be passed to and returned from Passport methods, they are passed as a pointer to their memory.
+ */
+public interface Struct
+{
+    /**
+     * @return The native memory the struct is in.
+     */
+    MemorySegment segment();
+
+    /**
+     * @param type The Struct view interface.
+     * @param segment The memory of the struct, it must be at least as big as the struct.
+     * @return A view of the struct in the segment.
+     */
+    static <S extends Struct> S of(Class<S> type, MemorySegment segment)
+    {
+        return StructWriter.view(type, segment);
+    }
+
+    /**
+     * This requires -Dforeign.restricted=permit, the same as any other use of memory returned by a library.
+     *
+     * @param type The Struct view interface.
+     * @param address The address of the struct.
+     * @return A view of the struct at the address, or null for a NULL pointer.
+     */
+    static <S extends Struct> S at(Class<S> type, MemoryAddress address)
+    {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        return StructWriter.view(type, address.asSegmentRestricted(sizeOf(type)));
+    }
+
+    /**
+     * @param type The Struct view interface.
+     * @param scope The scope that owns the memory.
+     * @return A view of a new struct with every member set to 0.
+     */
+    static <S extends Struct> S allocate(Class<S> type, NativeScope scope)
+    {
+        MemorySegment segment = scope.allocate(sizeOf(type), Structs.ALIGNMENT);
+        segment.fill((byte) 0);
+        return StructWriter.view(type, segment);
+    }
+
+    /**
+     * @param type The Struct view interface.
+     * @return The number of bytes in the struct.
+     */
+    static long sizeOf(Class<? extends Struct> type)
+    {
+        return StructWriter.layout(type).byteSize();
+    }
+}
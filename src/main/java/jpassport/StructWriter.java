@@ -0,0 +1,305 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.*;
+import jdk.incubator.foreign.MemoryLayout.PathElement;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static jpassport.ClassFileWriter.*;
+
+/**
+ * Writes the implementation of a Struct view. The class holds the MemorySegment of the struct and every getter
+ * and setter reads or writes its member at an offset that is worked out when the class is written, so the offsets
+ * are constants in the byte code. Nested structs are views of a slice of the segment and @Ptr members are only
+ * followed when their getter is called, nothing is copied into Java objects.
+ *
+ * One class is written for each view interface the first time it is used.
+ */
+final class StructWriter
+{
+    private static final String OBJECT = "java/lang/Object";
+    private static final String STRUCT = internalName(Struct.class);
+    private static final String MEMORY_SEGMENT = internalName(MemorySegment.class);
+    private static final String MEMORY_ACCESS = internalName(MemoryAccess.class);
+    private static final String UTILS = internalName(Utils.class);
+    private static final String SEGMENT_FIELD = "m_segment";
+
+    private record View(GroupLayout layout, MethodHandle constructor) {}
+
+    private static final ClassValue<View> Views = new ClassValue<>()
+    {
+        @Override
+        protected View computeValue(Class<?> type)
+        {
+            return build(type);
+        }
+    };
+
+    private final Class<?> m_viewClass;
+    private final GroupLayout m_layout;
+    private final String m_className;
+    private ClassFileWriter m_class;
+
+    private StructWriter(Class<?> viewClass)
+    {
+        m_viewClass = viewClass;
+        m_layout = Structs.layout(viewClass, new HashMap<>());
+        m_className = "jpassport/" + viewClass.getSimpleName() + "_struct";
+    }
+
+    /**
+     * @param type The Struct view interface.
+     * @param segment The memory of the struct.
+     * @return The view of the struct.
+     */
+    static <S extends Struct> S view(Class<S> type, MemorySegment segment)
+    {
+        View view = Views.get(type);
+        if (segment.byteSize() < view.layout().byteSize())
+            throw new IllegalArgumentException(type.getSimpleName() + " needs " + view.layout().byteSize() +
+                    " bytes but the segment has " + segment.byteSize());
+
+        try {
+            return type.cast((Struct) view.constructor().invokeExact(segment));
+        }
+        catch (RuntimeException | Error ex) {
+            throw ex;
+        }
+        catch (Throwable th) {
+            throw new PassportException(th.getMessage());
+        }
+    }
+
+    /**
+     * @param type The Struct view interface.
+     * @return The layout of the struct, this also checks that the view can be implemented.
+     */
+    static GroupLayout layout(Class<? extends Struct> type)
+    {
+        return Views.get(type).layout();
+    }
+
+    private static View build(Class<?> type)
+    {
+        if (!Structs.isView(type))
+            throw new IllegalArgumentException(type.getName() + " is not an interface that extends " + Struct.class.getSimpleName());
+
+        StructWriter writer = new StructWriter(type);
+        byte[] classBytes = writer.writeClass();
+
+        try {
+            // The hidden class lives in this module so this module must be able to read the interface
+            StructWriter.class.getModule().addReads(type.getModule());
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, MemorySegment.class));
+            return new View(writer.m_layout, constructor.asType(MethodType.methodType(Struct.class, MemorySegment.class)));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new PassportException(ex.getMessage());
+        }
+    }
+
+    private byte[] writeClass()
+    {
+        m_class = new ClassFileWriter(m_className, OBJECT, internalName(m_viewClass));
+        m_class.addField(ACC_PRIVATE | ACC_FINAL, SEGMENT_FIELD, MemorySegment.class.descriptorString());
+
+        ClassFileWriter.Code constructor = m_class.addMethod(ACC_PUBLIC, "<init>", methodDescriptor(void.class, MemorySegment.class));
+        constructor.load(Object.class, 0)
+                .invokespecial(OBJECT, "<init>", "()V")
+                .load(Object.class, 0)
+                .load(MemorySegment.class, 1)
+                .putfield(m_className, SEGMENT_FIELD, MemorySegment.class.descriptorString())
+                .returnValue(void.class);
+        constructor.end();
+
+        ClassFileWriter.Code segment = m_class.addMethod(ACC_PUBLIC, "segment", methodDescriptor(MemorySegment.class));
+        loadSegment(segment).returnValue(MemorySegment.class);
+        segment.end();
+
+        Map<String, Structs.Member> members = Structs.members(m_viewClass).stream()
+                .collect(Collectors.toMap(Structs.Member::name, Function.identity()));
+
+        for (Method method : m_viewClass.getMethods())
+        {
+            if (!Modifier.isAbstract(method.getModifiers()) || method.getDeclaringClass().equals(Struct.class))
+                continue;
+
+            Structs.Member member = members.get(method.getName());
+            Class<?>[] params = method.getParameterTypes();
+            if (member != null && params.length == 0 && member.type().equals(method.getReturnType()))
+                writeGetter(member);
+            else if (member != null && params.length == 1 && member.type().equals(params[0]) && void.class.equals(method.getReturnType()))
+                writeSetter(member);
+            else
+                throw new PassportException(m_viewClass.getSimpleName() + "." + method.getName() +
+                        " is not a getter or setter of a member listed in @StructMembers");
+        }
+
+        byte[] classBytes = m_class.toByteArray();
+        m_class = null;
+        return classBytes;
+    }
+
+    private void writeGetter(Structs.Member member)
+    {
+        Class<?> type = member.type();
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PUBLIC, member.name(), methodDescriptor(type));
+
+        if (type.isPrimitive())
+        {
+            pushOffset(loadSegment(code), member)
+                    .invokestatic(MEMORY_ACCESS, "get" + typeName(type) + "AtOffset",
+                            methodDescriptor(type, MemorySegment.class, long.class), false);
+        }
+        else if (type.isArray())
+        {
+            // Arrays are copied out, the getter returns a new array
+            pushOffset(loadSegment(code), member)
+                    .lconst(Structs.arrayBytes(member))
+                    .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                    .invokeinterface(MEMORY_SEGMENT, "to" + typeName(type.getComponentType()) + "Array", methodDescriptor(type));
+        }
+        else if (String.class.equals(type))
+        {
+            // A NULL pointer, as in a struct that was just allocated, reads as null
+            pushOffset(loadSegment(code), member)
+                    .invokestatic(MEMORY_ACCESS, "getAddressAtOffset",
+                            methodDescriptor(MemoryAddress.class, MemorySegment.class, long.class), false)
+                    .iconst(0)
+                    .invokestatic(UTILS, "toJavaString", methodDescriptor(String.class, MemoryAddress.class, boolean.class), false);
+        }
+        else if (member.isPtr())
+        {
+            // The pointer is only followed now
+            code.ldcClass(internalName(type));
+            pushOffset(loadSegment(code), member)
+                    .invokestatic(MEMORY_ACCESS, "getAddressAtOffset",
+                            methodDescriptor(MemoryAddress.class, MemorySegment.class, long.class), false)
+                    .invokestatic(STRUCT, "at", methodDescriptor(Struct.class, Class.class, MemoryAddress.class), true)
+                    .checkcast(internalName(type));
+        }
+        else
+        {
+            // A nested struct is a view of its part of this struct
+            code.ldcClass(internalName(type));
+            pushOffset(loadSegment(code), member)
+                    .lconst(memberLayout(member).byteSize())
+                    .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                    .invokestatic(STRUCT, "of", methodDescriptor(Struct.class, Class.class, MemorySegment.class), true)
+                    .checkcast(internalName(type));
+        }
+
+        code.returnValue(type);
+        code.end();
+    }
+
+    private void writeSetter(Structs.Member member)
+    {
+        Class<?> type = member.type();
+        ClassFileWriter.Code code = m_class.addMethod(ACC_PUBLIC, member.name(), methodDescriptor(void.class, type));
+
+        if (type.isPrimitive())
+        {
+            pushOffset(loadSegment(code), member)
+                    .load(type, 1)
+                    .invokestatic(MEMORY_ACCESS, "set" + typeName(type) + "AtOffset",
+                            methodDescriptor(void.class, MemorySegment.class, long.class, type), false);
+        }
+        else if (type.isArray())
+        {
+            pushOffset(loadSegment(code), member)
+                    .lconst(Structs.arrayBytes(member))
+                    .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                    .load(type, 1)
+                    .invokestatic(MEMORY_SEGMENT, "ofArray", methodDescriptor(MemorySegment.class, type), true)
+                    .invokestatic(UTILS, "toStruct", methodDescriptor(void.class, MemorySegment.class, MemorySegment.class), false);
+        }
+        else if (String.class.equals(type))
+        {
+            throw new PassportException("String members of Struct views are read only: " + member);
+        }
+        else if (member.isPtr())
+        {
+            // The pointer is set to the struct the argument is a view of, null sets it to NULL
+            ClassFileWriter.Label notNull = new ClassFileWriter.Label();
+            code.load(type, 1)
+                    .ifnonnull(notNull);
+            pushOffset(loadSegment(code), member)
+                    .getstatic(internalName(MemoryAddress.class), "NULL", MemoryAddress.class.descriptorString())
+                    .invokestatic(MEMORY_ACCESS, "setAddressAtOffset",
+                            methodDescriptor(void.class, MemorySegment.class, long.class, Addressable.class), false)
+                    .returnValue(void.class);
+
+            code.mark(notNull).frame(List.of("L" + m_className + ";", type.descriptorString()), List.of());
+            pushOffset(loadSegment(code), member)
+                    .load(type, 1)
+                    .invokeinterface(STRUCT, "segment", methodDescriptor(MemorySegment.class))
+                    .invokestatic(MEMORY_ACCESS, "setAddressAtOffset",
+                            methodDescriptor(void.class, MemorySegment.class, long.class, Addressable.class), false);
+        }
+        else
+        {
+            // The argument may be a view of a segment that is larger than the struct, only the struct is copied
+            long size = memberLayout(member).byteSize();
+            pushOffset(loadSegment(code), member)
+                    .lconst(size)
+                    .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                    .load(type, 1)
+                    .invokeinterface(STRUCT, "segment", methodDescriptor(MemorySegment.class))
+                    .lconst(0)
+                    .lconst(size)
+                    .invokeinterface(MEMORY_SEGMENT, "asSlice", methodDescriptor(MemorySegment.class, long.class, long.class))
+                    .invokeinterface(MEMORY_SEGMENT, "copyFrom", methodDescriptor(void.class, MemorySegment.class));
+        }
+
+        code.returnValue(void.class);
+        code.end();
+    }
+
+    private ClassFileWriter.Code loadSegment(ClassFileWriter.Code code)
+    {
+        return code.load(Object.class, 0)
+                .getfield(m_className, SEGMENT_FIELD, MemorySegment.class.descriptorString());
+    }
+
+    private ClassFileWriter.Code pushOffset(ClassFileWriter.Code code, Structs.Member member)
+    {
+        return code.lconst(m_layout.byteOffset(PathElement.groupElement(member.name())));
+    }
+
+    private MemoryLayout memberLayout(Structs.Member member)
+    {
+        return m_layout.select(PathElement.groupElement(member.name()));
+    }
+
+    /**
+     * @return The name MemoryAccess uses for a primitive type, like Int for int.
+     */
+    private static String typeName(Class<?> type)
+    {
+        String name = type.getName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,280 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jdk.incubator.foreign.*;
+import jpassport.annotations.Array;
+import jpassport.annotations.Ptr;
+import jpassport.annotations.StructMembers;
+import jpassport.annotations.StructPadding;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static jpassport.Utils.Platform.Windows;
+
+/**
+ * Builds the MemoryLayout of a C struct from a Record or from a Struct view interface.
+ * Members are laid out the way a C compiler lays out a struct: each member starts at the next offset
+ * that is a multiple of its alignment, and the struct is padded to a multiple of its largest alignment
+ * so that arrays of it have the right stride. @StructPadding is checked against this layout, or replaces it
+ * when override is set.
+ */
+final class Structs
+{
+    // Structs are allocated with the alignment of the largest primitive they can hold
+    static final long ALIGNMENT = 8;
+
+    private Structs() {}
+
+    /**
+     * A member of a struct, either a component of a Record or a getter of a Struct view.
+     *
+     * @param name The name of the member.
+     * @param type The Java type of the member.
+     * @param element The field or getter, this holds the annotations of the member.
+     * @param owner The Record or Struct view the member belongs to.
+     */
+    record Member(String name, Class<?> type, AnnotatedElement element, Class<?> owner)
+    {
+        static Member of(Field field)
+        {
+            return new Member(field.getName(), field.getType(), field, field.getDeclaringClass());
+        }
+
+        boolean isPtr()
+        {
+            return element.getAnnotationsByType(Ptr.class).length > 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return owner.getSimpleName() + "." + name;
+        }
+    }
+
+    /**
+     * @return true if the class is an interface that is mapped on to native memory.
+     */
+    static boolean isView(Class<?> c)
+    {
+        return c.isInterface() && Struct.class.isAssignableFrom(c) && !Struct.class.equals(c);
+    }
+
+    /**
+     * @param c A Record or a Struct view.
+     * @return The members of the struct in the order they are in memory.
+     */
+    static List<Member> members(Class<?> c)
+    {
+        if (c.isRecord())
+            return Arrays.stream(c.getDeclaredFields()).map(Member::of).toList();
+
+        StructMembers order = c.getAnnotation(StructMembers.class);
+        if (order == null)
+            throw new PassportException("Struct views must list their members with @StructMembers: " + c.getSimpleName());
+
+        List<Member> members = new ArrayList<>();
+        for (String name : order.value())
+        {
+            try {
+                Method getter = c.getMethod(name);
+                members.add(new Member(name, getter.getReturnType(), getter, c));
+            }
+            catch (NoSuchMethodException ex) {
+                throw new PassportException("Struct view " + c.getSimpleName() + " has no getter for member " + name);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Build the layout of a single Record or Struct view. Any structs it contains are built first.
+     *
+     * @param c The Record or Struct view.
+     * @param layouts The layouts that have been built, the new layout is added to it.
+     * @return The layout of the struct.
+     */
+    static GroupLayout layout(Class<?> c, Map<Class, GroupLayout> layouts)
+    {
+        GroupLayout layout = layouts.get(c);
+        if (layout != null)
+            return layout;
+
+        List<MemoryLayout> members = new ArrayList<>();
+        long offset = 0;
+        long alignment = 1;
+        StructPadding after = null;
+        Member afterMember = null;
+
+        for (Member m : members(c))
+        {
+            MemoryLayout member = memberLayout(m, layouts);
+            long memberAlignment = naturalAlignment(member);
+            StructPadding before = m.element().getAnnotation(StructPadding.class);
+            if (before != null && getPaddingBytes(before) >= 0)
+                before = null;
+
+            long padding = checkPadding(before != null ? m : afterMember, after, before, alignUp(offset, memberAlignment) - offset);
+            if (padding > 0)
+                members.add(MemoryLayout.ofPaddingBits(padding * 8));
+
+            members.add(member);
+            offset += padding + member.byteSize();
+            alignment = Math.max(alignment, memberAlignment);
+
+            after = m.element().getAnnotation(StructPadding.class);
+            if (after != null && getPaddingBytes(after) < 0)
+                after = null;
+            afterMember = m;
+        }
+
+        long padding = checkPadding(afterMember, after, null, alignUp(offset, alignment) - offset);
+        if (padding > 0)
+            members.add(MemoryLayout.ofPaddingBits(padding * 8));
+
+        layout = MemoryLayout.ofStruct(members.toArray(MemoryLayout[]::new));
+        layouts.put(c, layout);
+        return layout;
+    }
+
+    private static MemoryLayout memberLayout(Member m, Map<Class, GroupLayout> layouts)
+    {
+        Class<?> type = m.type();
+        if (type.isPrimitive())
+            return primitiveLayout(type).withName(m.name());
+
+        if (type.isArray())
+        {
+            // An array inside a struct is stored inline, like double coeffs[16]
+            Array array = getArray(m);
+            return MemoryLayout.ofSequence(array.length(), primitiveLayout(type.getComponentType())).withName(m.name());
+        }
+
+        // Records hold Records and views hold views
+        boolean isStruct = m.owner().isRecord() ? type.isRecord() : isView(type);
+        if (isStruct && !m.isPtr())
+            return layout(type, layouts).withName(m.name());
+
+        if (isStruct || String.class.equals(type))
+            return CLinker.C_POINTER.withName(m.name());
+
+        throw new PassportException("Unsupported type in a struct: " + m);
+    }
+
+    /**
+     * Work out the padding between two members of a struct, or at the end of the struct.
+     *
+     * @param member The member the padding is next to, used for the error message.
+     * @param after The @StructPadding of the member before the padding, if it gives padding after that member.
+     * @param before The @StructPadding of the member after the padding, if it gives padding before that member.
+     * @param computed The padding a C compiler would use.
+     * @return The number of bytes of padding.
+     */
+    private static long checkPadding(Member member, StructPadding after, StructPadding before, long computed)
+    {
+        if (after == null && before == null)
+            return computed;
+
+        long explicit = 0;
+        boolean override = false;
+        if (after != null)
+        {
+            explicit += getPaddingBytes(after);
+            override = after.override();
+        }
+        if (before != null)
+        {
+            explicit -= getPaddingBytes(before);
+            override |= before.override();
+        }
+
+        if (!override && explicit != computed)
+            throw new PassportException(member + ": @StructPadding gives " + explicit + " bytes of padding but the C layout has " +
+                    computed + ", set override if the struct really is laid out this way");
+        return explicit;
+    }
+
+    /**
+     * @return The alignment a C compiler gives a member, a struct is aligned like its most aligned member.
+     */
+    private static long naturalAlignment(MemoryLayout layout)
+    {
+        if (layout instanceof GroupLayout group)
+            return group.memberLayouts().stream().filter(m -> !m.isPadding()).mapToLong(Structs::naturalAlignment).max().orElse(1);
+        if (layout instanceof SequenceLayout sequence)
+            return naturalAlignment(sequence.elementLayout());
+        return layout.byteAlignment();
+    }
+
+    private static long alignUp(long offset, long alignment)
+    {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    static MemoryLayout primitiveLayout(Class type)
+    {
+        if (byte.class.equals(type))
+            return CLinker.C_CHAR;
+        if (short.class.equals(type) || char.class.equals(type))
+            return CLinker.C_SHORT;
+        if (int.class.equals(type))
+            return CLinker.C_INT;
+        if (long.class.equals(type))
+            return CLinker.C_LONG_LONG;
+        if (float.class.equals(type))
+            return CLinker.C_FLOAT;
+        if (double.class.equals(type))
+            return CLinker.C_DOUBLE;
+        throw new PassportException("Unsupported type in a struct: " + type.getName());
+    }
+
+    /**
+     * @return The @Array annotation of an array member of a struct.
+     */
+    private static Array getArray(Member m)
+    {
+        Array array = m.element().getAnnotation(Array.class);
+        if (array == null || !m.type().getComponentType().isPrimitive())
+            throw new PassportException("Array members of structs must be 1D arrays of primitives with @Array(length): " + m);
+        return array;
+    }
+
+    /**
+     * @return The number of bytes of an @Array member of a struct.
+     */
+    static long arrayBytes(Member m)
+    {
+        return getArray(m).length() * primitiveLayout(m.type().getComponentType()).byteSize();
+    }
+
+    /**
+     * @return The padding in bytes for this platform, negative numbers are padding before the member.
+     */
+    private static int getPaddingBytes(StructPadding sp)
+    {
+        Utils.Platform p = Utils.getPlatform();
+        if (Windows.equals(p) && sp.windowsBytes() != StructPadding.NO_VALUE)
+            return sp.windowsBytes();
+        if (Utils.Platform.Mac.equals(p) && sp.macBytes() != StructPadding.NO_VALUE)
+            return sp.macBytes();
+        if (Utils.Platform.Linux.equals(p) && sp.linuxBytes() != StructPadding.NO_VALUE)
+            return sp.linuxBytes();
+        return sp.bytes();
+    }
+}
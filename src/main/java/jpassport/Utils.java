@@ -14,15 +14,22 @@ package jpassport;
 import jdk.incubator.foreign.*;
 
 import java.io.IOException;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandles;
 import java.lang.ref.Cleaner;
-import java.nio.ByteBuffer;
+import java.nio.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Spliterator;
 
 import static jdk.incubator.foreign.CLinker.*;
@@ -31,192 +38,819 @@ import static jdk.incubator.foreign.CLinker.TypeKind.DOUBLE;
 public class Utils
 {
 /* Double ///////////////////////////////////////////////////////////////// */
+
     public static MemorySegment toMS(NativeScope scope, double[] arr) {
-        return scope.allocateArray(C_DOUBLE, arr);
+        return copy(scope, MemorySegment.ofArray(arr), Double.BYTES);
     }
 
     public static MemorySegment toMS(NativeScope scope, double[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * arr[0].length * Double.BYTES);
-        int n = 0;
-        for (double[] row : arr) {
-            segment.asSlice(n, (long)row.length * Double.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Double.BYTES;
-        }
-
-        return segment;
+        return copyRows(scope, checkRectangular(rows(arr)), Double.BYTES);
     }
 
     public static MemorySegment toPtrPTrMS(NativeScope scope, double[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (double[] a : arr)
-        {
-            MemorySegment subSeg = scope.allocateArray(C_DOUBLE, a);
-            MemoryAccess.setLongAtIndex(segment, n++, subSeg.address().toRawLongValue());
-        }
-        return segment;
+        return copyPtrPtr(scope, rows(arr), Double.BYTES);
+    }
+
+    public static MemorySegment toOutMS(NativeScope scope, double[] arr, boolean zero) {
+        return allocateOut(scope, (long) arr.length * Double.BYTES, Double.BYTES, zero);
     }
 
     public static void toArr(double[] arr, MemorySegment segment) {
-        for (int n = 0; n < arr.length; ++n)
-            arr[n] = MemoryAccess.getDoubleAtIndex(segment, n);
+        MemorySegment.ofArray(arr).copyFrom(segment.asSlice(0, (long) arr.length * Double.BYTES));
     }
 
+    public static double[] toArr(MemoryAddress address, double[] arr, long count, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            double[] result = arr != null ? arr : new double[resultLength(count)];
+            copyResult(address, MemorySegment.ofArray(result), count, Double.BYTES);
+            return result;
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    private static MemorySegment[] rows(double[][] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
+        for (int n = 0; n < arr.length; ++n)
+            rows[n] = MemorySegment.ofArray(arr[n]);
+        return rows;
+    }
 
-    /* Float ///////////////////////////////////////////////////////////////// */
+/* Float ///////////////////////////////////////////////////////////////// */
 
     public static MemorySegment toMS(NativeScope scope, float[] arr) {
-        return scope.allocateArray(C_FLOAT, arr);
+        return copy(scope, MemorySegment.ofArray(arr), Float.BYTES);
     }
 
     public static MemorySegment toMS(NativeScope scope, float[][] arr) {
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Float.BYTES);
-        int n = 0;
-        for (float[] row : arr) {
-            segment.asSlice(n, (long)row.length * Float.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Float.BYTES;
-        }
-
-        return segment;
+        return copyRows(scope, checkRectangular(rows(arr)), Float.BYTES);
     }
 
     public static MemorySegment toPtrPTrMS(NativeScope scope, float[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (float[] a : arr)
-        {
-            MemorySegment subSeg = scope.allocateArray(C_FLOAT, a);
-            MemoryAccess.setLongAtIndex(segment, n++, subSeg.address().toRawLongValue());
-        }
-        return segment;
+        return copyPtrPtr(scope, rows(arr), Float.BYTES);
+    }
+
+    public static MemorySegment toOutMS(NativeScope scope, float[] arr, boolean zero) {
+        return allocateOut(scope, (long) arr.length * Float.BYTES, Float.BYTES, zero);
     }
 
     public static void toArr(float[] arr, MemorySegment segment) {
+        MemorySegment.ofArray(arr).copyFrom(segment.asSlice(0, (long) arr.length * Float.BYTES));
+    }
+
+    public static float[] toArr(MemoryAddress address, float[] arr, long count, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            float[] result = arr != null ? arr : new float[resultLength(count)];
+            copyResult(address, MemorySegment.ofArray(result), count, Float.BYTES);
+            return result;
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    private static MemorySegment[] rows(float[][] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
         for (int n = 0; n < arr.length; ++n)
-            arr[n] = MemoryAccess.getFloatAtIndex(segment, n);
+            rows[n] = MemorySegment.ofArray(arr[n]);
+        return rows;
     }
 
 /* Long ///////////////////////////////////////////////////////////////// */
 
     public static MemorySegment toMS(NativeScope scope, long[] arr) {
-        return scope.allocateArray(C_LONG_LONG, arr);
+        return copy(scope, MemorySegment.ofArray(arr), Long.BYTES);
     }
 
-    public static MemorySegment toPtrPTrMS(NativeScope scope, long[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (long[] a : arr)
-        {
-            MemorySegment subSeg = scope.allocateArray(C_LONG_LONG, a);
-            MemoryAccess.setLongAtIndex(segment, n++, subSeg.address().toRawLongValue());
-        }
-        return segment;
+    public static MemorySegment toMS(NativeScope scope, long[][] arr) {
+        return copyRows(scope, checkRectangular(rows(arr)), Long.BYTES);
     }
 
-    public static MemorySegment toMS(NativeScope scope, long[][] arr) {
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Long.BYTES);
-        int n = 0;
-        for (long[] row : arr) {
-            segment.asSlice(n, (long)row.length * Long.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Long.BYTES;
-        }
+    public static MemorySegment toPtrPTrMS(NativeScope scope, long[][] arr) {
+        return copyPtrPtr(scope, rows(arr), Long.BYTES);
+    }
 
-        return segment;
+    public static MemorySegment toOutMS(NativeScope scope, long[] arr, boolean zero) {
+        return allocateOut(scope, (long) arr.length * Long.BYTES, Long.BYTES, zero);
     }
 
     public static void toArr(long[] arr, MemorySegment segment) {
+        MemorySegment.ofArray(arr).copyFrom(segment.asSlice(0, (long) arr.length * Long.BYTES));
+    }
+
+    public static long[] toArr(MemoryAddress address, long[] arr, long count, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            long[] result = arr != null ? arr : new long[resultLength(count)];
+            copyResult(address, MemorySegment.ofArray(result), count, Long.BYTES);
+            return result;
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    private static MemorySegment[] rows(long[][] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
         for (int n = 0; n < arr.length; ++n)
-            arr[n] = MemoryAccess.getLongAtIndex(segment, n);
+            rows[n] = MemorySegment.ofArray(arr[n]);
+        return rows;
     }
 
 /* Int ///////////////////////////////////////////////////////////////// */
 
     public static MemorySegment toMS(NativeScope scope, int[] arr) {
-        return scope.allocateArray(C_INT, arr);
+        return copy(scope, MemorySegment.ofArray(arr), Integer.BYTES);
     }
 
-    public static MemorySegment toPtrPTrMS(NativeScope scope, int[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (int[] a : arr)
-            MemoryAccess.setLongAtIndex(segment, n++, scope.allocateArray(C_INT, a).address().toRawLongValue());
-        return segment;
+    public static MemorySegment toMS(NativeScope scope, int[][] arr) {
+        return copyRows(scope, checkRectangular(rows(arr)), Integer.BYTES);
     }
 
-    public static MemorySegment toMS(NativeScope scope, int[][] arr) {
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Integer.BYTES);
-        int n = 0;
-        for (int[] row : arr) {
-            segment.asSlice(n, (long)row.length * Integer.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Integer.BYTES;
-        }
+    public static MemorySegment toPtrPTrMS(NativeScope scope, int[][] arr) {
+        return copyPtrPtr(scope, rows(arr), Integer.BYTES);
+    }
 
-        return segment;
+    public static MemorySegment toOutMS(NativeScope scope, int[] arr, boolean zero) {
+        return allocateOut(scope, (long) arr.length * Integer.BYTES, Integer.BYTES, zero);
     }
 
     public static void toArr(int[] arr, MemorySegment segment) {
+        MemorySegment.ofArray(arr).copyFrom(segment.asSlice(0, (long) arr.length * Integer.BYTES));
+    }
+
+    public static int[] toArr(MemoryAddress address, int[] arr, long count, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            int[] result = arr != null ? arr : new int[resultLength(count)];
+            copyResult(address, MemorySegment.ofArray(result), count, Integer.BYTES);
+            return result;
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    private static MemorySegment[] rows(int[][] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
         for (int n = 0; n < arr.length; ++n)
-            arr[n] = MemoryAccess.getIntAtIndex(segment, n);
+            rows[n] = MemorySegment.ofArray(arr[n]);
+        return rows;
     }
 
 /* Short ///////////////////////////////////////////////////////////////// */
 
     public static MemorySegment toMS(NativeScope scope, short[] arr) {
-        return scope.allocateArray(C_SHORT, arr);
+        return copy(scope, MemorySegment.ofArray(arr), Short.BYTES);
     }
 
-    public static MemorySegment toPtrPTrMS(NativeScope scope, short[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (short[] a : arr)
-            MemoryAccess.setLongAtIndex(segment, n++, scope.allocateArray(C_SHORT, a).address().toRawLongValue());
-        return segment;
+    public static MemorySegment toMS(NativeScope scope, short[][] arr) {
+        return copyRows(scope, checkRectangular(rows(arr)), Short.BYTES);
     }
 
-    public static MemorySegment toMS(NativeScope scope, short[][] arr) {
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Short.BYTES);
-        int n = 0;
-        for (short[] row : arr) {
-            segment.asSlice(n, (long)row.length * Short.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Short.BYTES;
-        }
+    public static MemorySegment toPtrPTrMS(NativeScope scope, short[][] arr) {
+        return copyPtrPtr(scope, rows(arr), Short.BYTES);
+    }
 
-        return segment;
+    public static MemorySegment toOutMS(NativeScope scope, short[] arr, boolean zero) {
+        return allocateOut(scope, (long) arr.length * Short.BYTES, Short.BYTES, zero);
     }
 
     public static void toArr(short[] arr, MemorySegment segment) {
+        MemorySegment.ofArray(arr).copyFrom(segment.asSlice(0, (long) arr.length * Short.BYTES));
+    }
+
+    public static short[] toArr(MemoryAddress address, short[] arr, long count, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            short[] result = arr != null ? arr : new short[resultLength(count)];
+            copyResult(address, MemorySegment.ofArray(result), count, Short.BYTES);
+            return result;
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    private static MemorySegment[] rows(short[][] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
         for (int n = 0; n < arr.length; ++n)
-            arr[n] = MemoryAccess.getShortAtIndex(segment, n);
+            rows[n] = MemorySegment.ofArray(arr[n]);
+        return rows;
     }
 
 /* Byte ///////////////////////////////////////////////////////////////// */
 
     public static MemorySegment toMS(NativeScope scope, byte[] arr) {
-        return scope.allocateArray(C_CHAR, arr);
+        return copy(scope, MemorySegment.ofArray(arr), Byte.BYTES);
+    }
+
+    public static MemorySegment toMS(NativeScope scope, byte[][] arr) {
+        return copyRows(scope, checkRectangular(rows(arr)), Byte.BYTES);
     }
 
     public static MemorySegment toPtrPTrMS(NativeScope scope, byte[][] arr) {
-        MemorySegment segment =  scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (byte[] a : arr)
-            MemoryAccess.setLongAtIndex(segment, n++, scope.allocateArray(C_CHAR, a).address().toRawLongValue());
+        return copyPtrPtr(scope, rows(arr), Byte.BYTES);
+    }
+
+    public static MemorySegment toOutMS(NativeScope scope, byte[] arr, boolean zero) {
+        return allocateOut(scope, (long) arr.length * Byte.BYTES, Byte.BYTES, zero);
+    }
+
+    public static void toArr(byte[] arr, MemorySegment segment) {
+        MemorySegment.ofArray(arr).copyFrom(segment.asSlice(0, (long) arr.length * Byte.BYTES));
+    }
+
+    public static byte[] toArr(MemoryAddress address, byte[] arr, long count, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            byte[] result = arr != null ? arr : new byte[resultLength(count)];
+            copyResult(address, MemorySegment.ofArray(result), count, Byte.BYTES);
+            return result;
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    private static MemorySegment[] rows(byte[][] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
+        for (int n = 0; n < arr.length; ++n)
+            rows[n] = MemorySegment.ofArray(arr[n]);
+        return rows;
+    }
+
+/* Buffers ///////////////////////////////////////////////////////////////// */
+
+    /**
+     * A MemorySegment is passed to C as it is. It must be native memory.
+     */
+    public static MemorySegment toMS(NativeScope scope, MemorySegment segment) {
         return segment;
     }
 
-    public static MemorySegment toMS(NativeScope scope, byte[][] arr) {
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Byte.BYTES);
-        int n = 0;
-        for (byte[] row : arr) {
-            segment.asSlice(n, row.length * Byte.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Byte.BYTES;
+    /**
+     * A direct ByteBuffer is passed to C without a copy, starting at its position. Other ByteBuffers are copied
+     * into native memory.
+     */
+    public static MemorySegment toMS(NativeScope scope, ByteBuffer buffer) {
+        MemorySegment segment = MemorySegment.ofByteBuffer(buffer);
+        return buffer.isDirect() ? segment : copy(scope, segment, 1);
+    }
+
+    /**
+     * Copy native memory back into a ByteBuffer if the buffer was copied by toMS().
+     */
+    public static void toBuffer(ByteBuffer buffer, MemorySegment segment) {
+        if (!buffer.isDirect() && !buffer.isReadOnly())
+            MemorySegment.ofByteBuffer(buffer).copyFrom(segment);
+    }
+
+    /**
+     * Copy the remaining values of a ShortBuffer into native memory. The Foreign API can't give the address of a
+     * direct ShortBuffer, pass a direct ByteBuffer in native order or a MemorySegment to avoid the copy.
+     */
+    public static MemorySegment toMS(NativeScope scope, ShortBuffer buffer) {
+        if (buffer.hasArray())
+            return copy(scope, MemorySegment.ofArray(buffer.array()).asSlice(
+                    (long) (buffer.arrayOffset() + buffer.position()) * Short.BYTES, (long) buffer.remaining() * Short.BYTES), Short.BYTES);
+
+        MemorySegment segment = scope.allocate((long) buffer.remaining() * Short.BYTES, Short.BYTES);
+        asNativeShorts(segment).put(buffer.duplicate());
+        return segment;
+    }
+
+    public static void toBuffer(ShortBuffer buffer, MemorySegment segment) {
+        if (buffer.isReadOnly())
+            return;
+        if (buffer.hasArray()) {
+            MemorySegment.ofArray(buffer.array()).asSlice((long) (buffer.arrayOffset() + buffer.position()) * Short.BYTES)
+                    .copyFrom(segment.asSlice(0, (long) buffer.remaining() * Short.BYTES));
+            return;
+        }
+        buffer.duplicate().put(asNativeShorts(segment.asSlice(0, (long) buffer.remaining() * Short.BYTES)));
+    }
+
+    /**
+     * Copy the remaining values of a IntBuffer into native memory. The Foreign API can't give the address of a
+     * direct IntBuffer, pass a direct ByteBuffer in native order or a MemorySegment to avoid the copy.
+     */
+    public static MemorySegment toMS(NativeScope scope, IntBuffer buffer) {
+        if (buffer.hasArray())
+            return copy(scope, MemorySegment.ofArray(buffer.array()).asSlice(
+                    (long) (buffer.arrayOffset() + buffer.position()) * Integer.BYTES, (long) buffer.remaining() * Integer.BYTES), Integer.BYTES);
+
+        MemorySegment segment = scope.allocate((long) buffer.remaining() * Integer.BYTES, Integer.BYTES);
+        asNativeInts(segment).put(buffer.duplicate());
+        return segment;
+    }
+
+    public static void toBuffer(IntBuffer buffer, MemorySegment segment) {
+        if (buffer.isReadOnly())
+            return;
+        if (buffer.hasArray()) {
+            MemorySegment.ofArray(buffer.array()).asSlice((long) (buffer.arrayOffset() + buffer.position()) * Integer.BYTES)
+                    .copyFrom(segment.asSlice(0, (long) buffer.remaining() * Integer.BYTES));
+            return;
         }
+        buffer.duplicate().put(asNativeInts(segment.asSlice(0, (long) buffer.remaining() * Integer.BYTES)));
+    }
+
+    /**
+     * Copy the remaining values of a LongBuffer into native memory. The Foreign API can't give the address of a
+     * direct LongBuffer, pass a direct ByteBuffer in native order or a MemorySegment to avoid the copy.
+     */
+    public static MemorySegment toMS(NativeScope scope, LongBuffer buffer) {
+        if (buffer.hasArray())
+            return copy(scope, MemorySegment.ofArray(buffer.array()).asSlice(
+                    (long) (buffer.arrayOffset() + buffer.position()) * Long.BYTES, (long) buffer.remaining() * Long.BYTES), Long.BYTES);
 
+        MemorySegment segment = scope.allocate((long) buffer.remaining() * Long.BYTES, Long.BYTES);
+        asNativeLongs(segment).put(buffer.duplicate());
         return segment;
     }
 
-    public static void toArr(byte[] arr, MemorySegment segment) {
+    public static void toBuffer(LongBuffer buffer, MemorySegment segment) {
+        if (buffer.isReadOnly())
+            return;
+        if (buffer.hasArray()) {
+            MemorySegment.ofArray(buffer.array()).asSlice((long) (buffer.arrayOffset() + buffer.position()) * Long.BYTES)
+                    .copyFrom(segment.asSlice(0, (long) buffer.remaining() * Long.BYTES));
+            return;
+        }
+        buffer.duplicate().put(asNativeLongs(segment.asSlice(0, (long) buffer.remaining() * Long.BYTES)));
+    }
+
+    /**
+     * Copy the remaining values of a FloatBuffer into native memory. The Foreign API can't give the address of a
+     * direct FloatBuffer, pass a direct ByteBuffer in native order or a MemorySegment to avoid the copy.
+     */
+    public static MemorySegment toMS(NativeScope scope, FloatBuffer buffer) {
+        if (buffer.hasArray())
+            return copy(scope, MemorySegment.ofArray(buffer.array()).asSlice(
+                    (long) (buffer.arrayOffset() + buffer.position()) * Float.BYTES, (long) buffer.remaining() * Float.BYTES), Float.BYTES);
+
+        MemorySegment segment = scope.allocate((long) buffer.remaining() * Float.BYTES, Float.BYTES);
+        asNativeFloats(segment).put(buffer.duplicate());
+        return segment;
+    }
+
+    public static void toBuffer(FloatBuffer buffer, MemorySegment segment) {
+        if (buffer.isReadOnly())
+            return;
+        if (buffer.hasArray()) {
+            MemorySegment.ofArray(buffer.array()).asSlice((long) (buffer.arrayOffset() + buffer.position()) * Float.BYTES)
+                    .copyFrom(segment.asSlice(0, (long) buffer.remaining() * Float.BYTES));
+            return;
+        }
+        buffer.duplicate().put(asNativeFloats(segment.asSlice(0, (long) buffer.remaining() * Float.BYTES)));
+    }
+
+    /**
+     * Copy the remaining values of a DoubleBuffer into native memory. The Foreign API can't give the address of a
+     * direct DoubleBuffer, pass a direct ByteBuffer in native order or a MemorySegment to avoid the copy.
+     */
+    public static MemorySegment toMS(NativeScope scope, DoubleBuffer buffer) {
+        if (buffer.hasArray())
+            return copy(scope, MemorySegment.ofArray(buffer.array()).asSlice(
+                    (long) (buffer.arrayOffset() + buffer.position()) * Double.BYTES, (long) buffer.remaining() * Double.BYTES), Double.BYTES);
+
+        MemorySegment segment = scope.allocate((long) buffer.remaining() * Double.BYTES, Double.BYTES);
+        asNativeDoubles(segment).put(buffer.duplicate());
+        return segment;
+    }
+
+    public static void toBuffer(DoubleBuffer buffer, MemorySegment segment) {
+        if (buffer.isReadOnly())
+            return;
+        if (buffer.hasArray()) {
+            MemorySegment.ofArray(buffer.array()).asSlice((long) (buffer.arrayOffset() + buffer.position()) * Double.BYTES)
+                    .copyFrom(segment.asSlice(0, (long) buffer.remaining() * Double.BYTES));
+            return;
+        }
+        buffer.duplicate().put(asNativeDoubles(segment.asSlice(0, (long) buffer.remaining() * Double.BYTES)));
+    }
+
+    /*
+     * The Foreign API can only make a MemorySegment of a ByteBuffer, so direct typed buffers are copied through a
+     * typed view of the native memory. put() of one buffer into another is a bulk copy that swaps the bytes of
+     * buffers that aren't in native order.
+     */
+    private static ShortBuffer asNativeShorts(MemorySegment segment) {
+        return segment.asByteBuffer().order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    private static IntBuffer asNativeInts(MemorySegment segment) {
+        return segment.asByteBuffer().order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static LongBuffer asNativeLongs(MemorySegment segment) {
+        return segment.asByteBuffer().order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private static FloatBuffer asNativeFloats(MemorySegment segment) {
+        return segment.asByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static DoubleBuffer asNativeDoubles(MemorySegment segment) {
+        return segment.asByteBuffer().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+/* N dimensions ///////////////////////////////////////////////////////////////// */
+
+    /**
+     * Copy an array of primitives with 3 or more dimensions, like double[][][], into one contiguous block of
+     * native memory the way C lays out double[x][y][z]. The array must not be jagged.
+     *
+     * @param scope The scope to allocate the memory in.
+     * @param arr An array of arrays of primitives.
+     * @return The native memory.
+     */
+    public static MemorySegment toMS(NativeScope scope, Object[] arr) {
+        List<MemorySegment> rows = new ArrayList<>();
+        int[] shape = new int[dimensions(arr.getClass()) - 1];
+        Arrays.fill(shape, -1);
+        flatten(arr, 0, shape, rows);
+        return copyRows(scope, checkRectangular(rows.toArray(MemorySegment[]::new)), elementBytes(arr.getClass()));
+    }
+
+    /**
+     * Copy an array of primitives with 3 or more dimensions into native memory as a tree of pointer tables,
+     * like a C double***. Every level may be jagged.
+     *
+     * @param scope The scope to allocate the memory in.
+     * @param arr An array of arrays of primitives.
+     * @return The top pointer table.
+     */
+    public static MemorySegment toPtrPTrMS(NativeScope scope, Object[] arr) {
+        if (dimensions(arr.getClass()) == 2)
+            return copyPtrPtr(scope, rows(arr), elementBytes(arr.getClass()));
+
+        MemorySegment table = scope.allocate(arr.length * C_POINTER.byteSize(), C_POINTER.byteAlignment());
         for (int n = 0; n < arr.length; ++n)
-            arr[n] = MemoryAccess.getByteAtOffset(segment, n);
+            MemoryAccess.setAddressAtIndex(table, n, toPtrPTrMS(scope, (Object[]) arr[n]).address());
+        return table;
+    }
+
+    /**
+     * Walk an N dimensional array collecting the innermost arrays in order. The lengths at each level are
+     * checked against the first array seen at that level as we go.
+     */
+    private static void flatten(Object[] arr, int depth, int[] shape, List<MemorySegment> rows) {
+        if (shape[depth] < 0)
+            shape[depth] = arr.length;
+        else if (shape[depth] != arr.length)
+            throw jagged();
+
+        for (Object sub : arr) {
+            if (depth + 1 < shape.length)
+                flatten((Object[]) sub, depth + 1, shape, rows);
+            else
+                rows.add(heapSegment(sub));
+        }
+    }
+
+    private static MemorySegment[] rows(Object[] arr) {
+        MemorySegment[] rows = new MemorySegment[arr.length];
+        for (int n = 0; n < arr.length; ++n)
+            rows[n] = heapSegment(arr[n]);
+        return rows;
+    }
+
+    private static MemorySegment heapSegment(Object arr) {
+        if (arr instanceof double[] d)
+            return MemorySegment.ofArray(d);
+        if (arr instanceof float[] f)
+            return MemorySegment.ofArray(f);
+        if (arr instanceof long[] l)
+            return MemorySegment.ofArray(l);
+        if (arr instanceof int[] i)
+            return MemorySegment.ofArray(i);
+        if (arr instanceof short[] s)
+            return MemorySegment.ofArray(s);
+        if (arr instanceof byte[] b)
+            return MemorySegment.ofArray(b);
+        throw new PassportException("Not an array of primitives: " + arr.getClass().getSimpleName());
+    }
+
+    /**
+     * @return The number of dimensions of an array type.
+     */
+    static int dimensions(Class<?> arrayType) {
+        int dimensions = 0;
+        for (Class<?> c = arrayType; c.isArray(); c = c.getComponentType())
+            ++dimensions;
+        return dimensions;
+    }
+
+    private static long elementBytes(Class<?> arrayType) {
+        Class<?> c = arrayType;
+        while (c.isArray())
+            c = c.getComponentType();
+
+        if (double.class.equals(c) || long.class.equals(c))
+            return 8;
+        if (float.class.equals(c) || int.class.equals(c))
+            return 4;
+        if (short.class.equals(c))
+            return 2;
+        return 1;
+    }
+
+    /**
+     * Memory laid out like a C array needs every row to be the same length.
+     */
+    private static MemorySegment[] checkRectangular(MemorySegment[] rows) {
+        for (MemorySegment row : rows) {
+            if (row.byteSize() != rows[0].byteSize())
+                throw jagged();
+        }
+        return rows;
+    }
+
+    private static IllegalArgumentException jagged() {
+        return new IllegalArgumentException("Jagged arrays can only be passed with @PtrPtrArg");
+    }
+
+/* Bulk copies ///////////////////////////////////////////////////////////////// */
+
+    /**
+     * Copy a heap segment into native memory with one bulk copy.
+     */
+    private static MemorySegment copy(NativeScope scope, MemorySegment heap, long alignment) {
+        MemorySegment segment = scope.allocate(heap.byteSize(), alignment);
+        segment.copyFrom(heap);
+        return segment;
+    }
+
+    /**
+     * Copy the rows of a 2D array one after another into a single block of native memory.
+     */
+    private static MemorySegment copyRows(NativeScope scope, MemorySegment[] rows, long alignment) {
+        long bytes = 0;
+        for (MemorySegment row : rows)
+            bytes += row.byteSize();
+
+        MemorySegment segment = scope.allocate(bytes, alignment);
+        long offset = 0;
+        for (MemorySegment row : rows) {
+            segment.asSlice(offset, row.byteSize()).copyFrom(row);
+            offset += row.byteSize();
+        }
+        return segment;
+    }
+
+    /**
+     * Copy the rows of a 2D array into a single block of native memory and build a table of pointers to
+     * the start of each row.
+     */
+    private static MemorySegment copyPtrPtr(NativeScope scope, MemorySegment[] rows, long alignment) {
+        MemorySegment table = scope.allocate(rows.length * C_POINTER.byteSize(), C_POINTER.byteAlignment());
+        MemorySegment data = copyRows(scope, rows, alignment);
+
+        long offset = 0;
+        for (int n = 0; n < rows.length; ++n) {
+            MemoryAccess.setAddressAtIndex(table, n, data.address().addOffset(offset));
+            offset += rows[n].byteSize();
+        }
+        return table;
+    }
+
+    /**
+     * Allocate the native memory for an @Out array. Nothing is copied into it.
+     */
+    private static MemorySegment allocateOut(NativeScope scope, long bytes, long alignment, boolean zero) {
+        MemorySegment segment = scope.allocate(bytes, alignment);
+        if (zero)
+            segment.fill((byte) 0);
+        return segment;
+    }
+
+/* @Length arrays ///////////////////////////////////////////////////////////////// */
+
+    /**
+     * Copy part of an array of primitives into native memory with one bulk copy.
+     *
+     * @param scope The scope to allocate the memory in.
+     * @param array A heap segment of the array.
+     * @param offset The first element to copy.
+     * @param count The number of elements to copy.
+     * @param elementBytes The size of one element.
+     * @return The native copy of the elements.
+     */
+    public static MemorySegment toMS(NativeScope scope, MemorySegment array, long offset, long count, long elementBytes) {
+        return copy(scope, range(array, offset, count, elementBytes), elementBytes);
+    }
+
+    /**
+     * Allocate the native memory for part of an @Out array. Nothing is copied into it.
+     */
+    public static MemorySegment toOutMS(NativeScope scope, MemorySegment array, long offset, long count, long elementBytes, boolean zero) {
+        return allocateOut(scope, range(array, offset, count, elementBytes).byteSize(), elementBytes, zero);
+    }
+
+    /**
+     * Copy native memory back into the part of an array of primitives it was copied from.
+     */
+    public static void toArr(MemorySegment array, long offset, long count, long elementBytes, MemorySegment segment) {
+        MemorySegment range = range(array, offset, count, elementBytes);
+        range.copyFrom(segment.asSlice(0, range.byteSize()));
+    }
+
+    /**
+     * Copy an array returned by the library into the start of a Java array with one bulk copy. The callers free
+     * the native memory, even if the count is invalid.
+     *
+     * @param address The returned pointer, it must not be NULL.
+     * @param array A heap segment of the Java array.
+     * @param count The number of elements the pointer points to.
+     * @param elementBytes The size of one element.
+     */
+    private static void copyResult(MemoryAddress address, MemorySegment array, long count, long elementBytes) {
+        MemorySegment range = range(array, 0, count, elementBytes);
+        // An empty result has nothing to copy, and a segment of 0 bytes can't be made from an address
+        if (count > 0)
+            range.copyFrom(address.asSegmentRestricted(count * elementBytes));
+    }
+
+    /**
+     * @return The length of the array for a returned array of count elements.
+     * @throws IndexOutOfBoundsException If count is negative or too large for a Java array.
+     */
+    private static int resultLength(long count) {
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new IndexOutOfBoundsException("Invalid length " + count + " for a returned array");
+        return (int) count;
+    }
+
+    /**
+     * @return The elements offset to offset + count of an array.
+     * @throws IndexOutOfBoundsException If the elements are not all in the array.
+     */
+    private static MemorySegment range(MemorySegment array, long offset, long count, long elementBytes) {
+        Objects.checkFromIndexSize(offset, count, array.byteSize() / elementBytes);
+        return array.asSlice(offset * elementBytes, count * elementBytes);
+    }
+
+/* Records ///////////////////////////////////////////////////////////////// */
+
+    /**
+     * Copy an array that is a member of a Record or Struct view into its place in the struct with one bulk copy.
+     *
+     * @param member The part of the struct that holds the array.
+     * @param array A heap segment of the array.
+     */
+    public static void toStruct(MemorySegment member, MemorySegment array) {
+        if (array.byteSize() != member.byteSize())
+            throw new IllegalArgumentException("An @Array member of a struct needs " + member.byteSize() +
+                    " bytes but the array has " + array.byteSize());
+        member.copyFrom(array);
+    }
+
+    /**
+     * Copy the structs of an array of Struct views into one block, the same as a C array of structs. Only the
+     * struct is copied from views of segments that are larger than it.
+     *
+     * @param scope The scope to allocate the block in.
+     * @param structs The Struct views.
+     * @param size The size of one struct.
+     * @return The block of structs.
+     */
+    public static MemorySegment toStructArray(NativeScope scope, Struct[] structs, long size) {
+        MemorySegment block = scope.allocate(size * structs.length, Structs.ALIGNMENT);
+        for (int n = 0; n < structs.length; ++n)
+            block.asSlice(n * size, size).copyFrom(structs[n].segment().asSlice(0, size));
+        return block;
+    }
+
+    /**
+     * Copy a block of structs back into the Struct views they were copied from. The views are updated in place,
+     * nothing is allocated on the Java heap.
+     *
+     * @param structs The Struct views.
+     * @param block The block of structs.
+     * @param size The size of one struct.
+     */
+    public static void fromStructArray(Struct[] structs, MemorySegment block, long size) {
+        for (int n = 0; n < structs.length; ++n)
+            structs[n].segment().asSlice(0, size).copyFrom(block.asSlice(n * size, size));
+    }
+
+/* String ///////////////////////////////////////////////////////////////// */
+
+    private static final boolean Ascii_Default = isAsciiCompatible(Charset.defaultCharset());
+    private static final boolean Utf8_Default = StandardCharsets.UTF_8.equals(Charset.defaultCharset());
+
+    /**
+     * Read a String returned by the library.
+     *
+     * @param address The returned pointer.
+     * @param free Free the native memory with the C library free() once it is read.
+     * @return The String, or null for a NULL pointer.
+     */
+    public static String toJavaString(MemoryAddress address, boolean free) {
+        if (MemoryAddress.NULL.equals(address))
+            return null;
+        try {
+            return CLinker.toJavaStringRestricted(address);
+        } finally {
+            if (free)
+                CLinker.freeMemoryRestricted(address);
+        }
+    }
+
+    /**
+     * Copy a String into native memory as a null terminated C string. This gives the same bytes as
+     * CLinker.toCString() but the characters are written straight into native memory instead of being encoded
+     * into a byte[] first. ASCII strings are copied a character at a time, other strings are encoded as UTF-8
+     * if that is the default charset. Any other string uses CLinker.toCString().
+     *
+     * @param scope The scope to allocate the string in.
+     * @param str The string to copy.
+     * @return The C string.
+     */
+    public static MemorySegment toCString(NativeScope scope, String str) {
+        int length = str.length();
+        boolean ascii = Ascii_Default;
+        for (int n = 0; ascii && n < length; ++n)
+            ascii = str.charAt(n) < 0x80;
+
+        if (ascii) {
+            MemorySegment segment = scope.allocate(length + 1L, 1);
+            for (int n = 0; n < length; ++n)
+                MemoryAccess.setByteAtOffset(segment, n, (byte) str.charAt(n));
+            MemoryAccess.setByteAtOffset(segment, length, (byte) 0);
+            return segment;
+        }
+
+        if (!Utf8_Default)
+            return CLinker.toCString(str, scope);
+
+        MemorySegment segment = scope.allocate(utf8Length(str) + 1L, 1);
+        long offset = 0;
+        for (int n = 0; n < length; ++n) {
+            char c = str.charAt(n);
+            if (c < 0x80)
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) c);
+            else if (c < 0x800) {
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0xC0 | (c >> 6)));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0x80 | (c & 0x3F)));
+            }
+            else if (isSurrogatePair(str, n)) {
+                int cp = Character.toCodePoint(c, str.charAt(++n));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0xF0 | (cp >> 18)));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0x80 | (cp & 0x3F)));
+            }
+            else if (Character.isSurrogate(c))
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) '?'); // Same as String.getBytes()
+            else {
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0xE0 | (c >> 12)));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                MemoryAccess.setByteAtOffset(segment, offset++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        MemoryAccess.setByteAtOffset(segment, offset, (byte) 0);
+        return segment;
+    }
+
+    private static long utf8Length(String str) {
+        long bytes = 0;
+        for (int n = 0; n < str.length(); ++n) {
+            char c = str.charAt(n);
+            if (c < 0x80 || (Character.isSurrogate(c) && !isSurrogatePair(str, n)))
+                bytes += 1;
+            else if (c < 0x800)
+                bytes += 2;
+            else if (isSurrogatePair(str, n)) {
+                bytes += 4;
+                ++n;
+            }
+            else
+                bytes += 3;
+        }
+        return bytes;
+    }
+
+    private static boolean isSurrogatePair(String str, int n) {
+        return Character.isHighSurrogate(str.charAt(n)) && n + 1 < str.length() && Character.isLowSurrogate(str.charAt(n + 1));
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        byte[] ascii = new byte[0x80];
+        for (int n = 0; n < ascii.length; ++n)
+            ascii[n] = (byte) n;
+        return Arrays.equals(ascii, new String(ascii, StandardCharsets.US_ASCII).getBytes(charset));
     }
 
 /*///////////////////////////////////////////////////////////////// */
@@ -256,11 +890,46 @@ public class Utils
         return true;
     }
 
+    /**
+     * @return The folder generated classes are written to, or null if they should only be defined in memory.
+     */
     public static Path getBuildFolder()
     {
         if (System.getProperty("jpassport.build.home") != null)
             return Path.of(System.getProperty("jpassport.build.home"));
-        return Path.of(System.getProperty("java.io.tmpdir"), "jpassport");
+        return null;
+    }
+
+    /**
+     * @return The folder generated classes are cached in between runs, or null if they should not be cached.
+     */
+    public static Path getCacheFolder()
+    {
+        if (System.getProperty("jpassport.cache.home") != null)
+            return Path.of(System.getProperty("jpassport.cache.home"));
+        return null;
+    }
+
+    /**
+     * Called from the static initializer of a generated class to get the MethodHandles and MemoryLayouts
+     * it stores in its static final fields.
+     *
+     * @param lookup The Lookup of the generated class, which proves the caller is that class.
+     * @return The values of the static fields keyed by field name.
+     */
+    public static Map<String, Object> getClassData(MethodHandles.Lookup lookup) throws IllegalAccessException
+    {
+        if (!lookup.hasFullPrivilegeAccess())
+            throw new IllegalAccessException("The Lookup of the generated class is needed to get its class data");
+
+        Class<?> generated = lookup.lookupClass();
+        if (generated.isHidden())
+            return MethodHandles.classData(lookup, ConstantDescs.DEFAULT_NAME, Map.class);
+
+        Map<String, Object> classData = ClassWriter.takeClassData(generated);
+        if (classData == null)
+            throw new PassportException("Class " + generated.getName() + " has not been linked, use PassportFactory.link()");
+        return classData;
     }
 
     public enum Platform {Windows, Mac, Linux, Unknown}
@@ -0,0 +1,37 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This is used to annotate a member of a Record that is an array of primitives stored inside the struct. Ex
+ *
+ *  struct Polynomial
+ *  {
+ *      double coeffs[16];
+ *      int n;
+ *  }
+ *
+ *  public record Polynomial(@Array(length = 16) double[] coeffs, int n) {}
+ *
+ * The array in the Record must have exactly length elements.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.RECORD_COMPONENT, ElementType.FIELD, ElementType.METHOD})
+public @interface Array {
+    /** The number of elements in the C array. */
+    int length();
+}
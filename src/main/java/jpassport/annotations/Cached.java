@@ -0,0 +1,32 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation is for a Record argument that is passed again and again, like a block of settings.
+ * The first time a Record object is passed it is copied into native memory that is kept, later calls with
+ * the same object pass the same memory without copying anything. Copies are kept for the most recently used
+ * Records of each thread (256 by default, set with -Djpassport.cached.records) and are freed once their Record
+ * is garbage collected.
+ *
+ * The library must not change the struct, and arrays in the Record must not be changed after it is first passed.
+ * Only Record arguments can be @Cached, and they can't also be @RefArg, @InOut or @Out.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Cached {
+}
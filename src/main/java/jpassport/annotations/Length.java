@@ -0,0 +1,58 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation ties an array of primitives to the number of elements the library uses. Only that many
+ * elements are copied into native memory, and read back after the call. Ex
+ *
+ *  double sumArrD(double *arr, int count);
+ *
+ *  double sumArrD(@Length(1) double[] arr, int count);
+ *
+ * Arguments are counted from 0. offset is the argument that holds the first element of the Java array to pass,
+ * the library gets a pointer to that element. The count and offset arguments must be byte, short, int or long.
+ * A fixed number of elements can be given with constant instead.
+ *
+ * On a method that returns an array of primitives the count is the number of elements the returned pointer points
+ * to, they are copied into a new array. into is an argument that is an array to copy them into instead, its length
+ * is used if there is no count.
+ *
+ *  double* mallocDoubles(int count);
+ *
+ *  @Length(0) double[] mallocDoubles(int count);
+ *
+ * The offset and into arguments are only used in Java, they are not passed to the library.
+ * This can only be used on 1D arrays of primitives.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+public @interface Length {
+    int NO_VALUE = -1;
+
+    /** The argument that holds the number of elements. */
+    int value() default NO_VALUE;
+
+    /** The argument that holds the index of the first element, by default the array is passed from the start. */
+    int offset() default NO_VALUE;
+
+    /** The number of elements, for arrays that always have the same length. */
+    int constant() default NO_VALUE;
+
+    /** For a returned array, the argument that is the array to copy the result into. */
+    int into() default NO_VALUE;
+}
@@ -0,0 +1,31 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation is for an array that is only written by the foreign library, like a buffer for results.
+ * Native memory of the same size is handed to the library without copying the array into it, and is
+ * read back into the array after the call.
+ *
+ * This annotation is only observed for arrays of primitives.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Out {
+    /** Set the native memory to 0 before the call. Turn this off if the library always writes every element. */
+    boolean zero() default true;
+}
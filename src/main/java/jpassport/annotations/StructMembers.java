@@ -0,0 +1,40 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This lists the members of a Struct view in the order they are declared in the C struct. Every member needs
+ * a getter with the same name, a setter is optional. Ex
+ *
+ *  struct Point
+ *  {
+ *      int x;
+ *      double y;
+ *  }
+ *
+ *  {@literal @}StructMembers({"x", "y"})
+ *  public interface Point extends Struct {
+ *      int x();
+ *      void x(int x);
+ *      double y();
+ *  }
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface StructMembers {
+    String[] value();
+}
@@ -6,15 +6,17 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * This should be used to annotate the members of a Record class that are converted to a C Struct.
- * The idea is that the values in a struct are often padded. At least chars, and shorts are often
- * padded to 32 bits. The trouble is that the exact amount of padding is dependent on the compiler
- * and the platform. As such, it's nearly impossible to know ahead of time what the padding should
- * be on a given platform with a given compiler. As the developer, you need to tell JPassport how
- * much padding there should be. You can specify different padding for different platforms.
+ * JPassport works out the padding of a struct the same way a C compiler does, every member is placed at the
+ * next offset that suits its natural alignment and the struct is padded to a multiple of its largest alignment.
+ * This annotation is only needed to check or change that layout.
+ *
+ * The number of bytes is the padding after the member, negative numbers are padding before the member.
+ * By default the padding has to match the padding JPassport computed, if it doesn't the interface fails to link.
+ * Set override to use the padding given here instead, for example for a struct declared with #pragma pack.
+ * You can specify different padding for different platforms.
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target({ElementType.RECORD_COMPONENT, ElementType.FIELD})
+@Target({ElementType.RECORD_COMPONENT, ElementType.FIELD, ElementType.METHOD})
 public @interface StructPadding {
 
     int NO_VALUE = Integer.MIN_VALUE;
@@ -24,4 +26,7 @@ public @interface StructPadding {
     int windowsBytes() default NO_VALUE;
     int macBytes() default NO_VALUE;
     int linuxBytes() default NO_VALUE;
+
+    /** Use this padding even if it is not the padding a C compiler would use. */
+    boolean override() default false;
 }
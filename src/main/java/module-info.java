@@ -1,6 +1,5 @@
 module jpassport {
     requires jdk.incubator.foreign;
-    requires jdk.compiler;
 
     exports jpassport;
     exports jpassport.annotations;
@@ -13,15 +13,47 @@ package jpassport.test;
 
 import com.sun.jna.Native;
 
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import jdk.incubator.foreign.*;
+import jpassport.CallArena;
+import jpassport.Passport;
+import jpassport.PassportException;
+import jpassport.Struct;
 import jpassport.Utils;
+import jpassport.annotations.Cached;
+import jpassport.annotations.Free;
+import jpassport.annotations.In;
+import jpassport.annotations.Length;
+import jpassport.annotations.InOut;
+import jpassport.annotations.Out;
+import jpassport.annotations.Ptr;
+import jpassport.annotations.PtrPtrArg;
+import jpassport.annotations.RefArg;
+import jpassport.annotations.StructMembers;
+import jpassport.annotations.StructPadding;
 import org.junit.jupiter.api.BeforeAll;
 import jpassport.PassportFactory;
 
@@ -40,7 +72,6 @@ public class LinkerTest
     @BeforeAll
     public static void startup() throws Throwable
     {
-        System.setProperty("jpassport.build.home", "out/testing");
 
         testFL = PassportFactory.link("libforeign_link", TestLink.class);
         testJNA =  Native.load("libforeign_link.dll", TestLink.class);
@@ -230,6 +261,22 @@ public class LinkerTest
         }
     }
 
+    @Test
+    void testToCString()
+    {
+        for (String str : List.of("", "hello", "h\u00e9llo", "\u4f60\u597d", "\ud83d\ude00 smile", "broken \ud83d"))
+        {
+            try (NativeScope scope = NativeScope.unboundedScope())
+            {
+                byte[] expected = CLinker.toCString(str, scope).toByteArray();
+                assertArrayEquals(expected, Utils.toCString(scope, str).toByteArray());
+            }
+            // An unpaired surrogate is written as '?' so it doesn't come back the same
+            if (!str.startsWith("broken"))
+                assertEquals(str, testFL.mallocString(str));
+        }
+    }
+
     @Test
     void testReturnPointer()
     {
@@ -243,6 +290,43 @@ public class LinkerTest
         testFL.freeMemory(address);
     }
 
+    public interface ReturnArrays extends Passport
+    {
+        @Free @Length(0) double[] mallocDoubles(int count);
+        @Free String mallocString(String origString);
+    }
+
+    public interface ReturnInto extends Passport
+    {
+        @Free @Length(into = 1) double[] mallocDoubles(int count, double[] into);
+    }
+
+    public interface ReturnIntoRefArg extends Passport
+    {
+        @Free @Length(into = 1) double[] mallocDoubles(int count, @RefArg double[] into);
+    }
+
+    @Test
+    void testReturnArrays() throws Throwable
+    {
+        ReturnArrays arrays = PassportFactory.link("libforeign_link", ReturnArrays.class);
+        assertArrayEquals(new double[] {0, 1, 2, 3, 4}, arrays.mallocDoubles(5));
+        assertArrayEquals(new double[0], arrays.mallocDoubles(0));
+        assertEquals("hello", arrays.mallocString("hello"));
+
+        // The result is copied into the array that is passed in, which is not passed to the library
+        ReturnInto into = PassportFactory.link("libforeign_link", ReturnInto.class);
+        double[] values = new double[3];
+        assertSame(values, into.mallocDoubles(values.length, values));
+        assertArrayEquals(new double[] {0, 1, 2}, values);
+
+        // The into array is never copied to C, so @RefArg doesn't read anything back over the result
+        ReturnIntoRefArg refArg = PassportFactory.link("libforeign_link", ReturnIntoRefArg.class);
+        double[] filled = new double[] {7, 7, 7, 7};
+        assertSame(filled, refArg.mallocDoubles(filled.length, filled));
+        assertArrayEquals(new double[] {0, 1, 2, 3}, filled);
+    }
+
 
     @Test
     void testSimpleStruct()
@@ -264,4 +348,555 @@ public class LinkerTest
         assertEquals(25, complex[0].tsPtr().s_int());
         assertEquals("HELLO", complex[0].string());
     }
+
+    public interface MissingSymbol extends Passport
+    {
+        double sumD(double d, double d2);
+        int notInTheLibrary(int n);
+    }
+
+    @Test
+    void testLazyLink() throws Throwable
+    {
+        MissingSymbol lazy = PassportFactory.linkLazy("libforeign_link", MissingSymbol.class);
+        assertEquals(4 + 5, lazy.sumD(4, 5));
+        assertEquals(1 + 2, lazy.sumD(1, 2));
+        assertThrows(Error.class, () -> lazy.notInTheLibrary(1));
+
+        assertThrows(IllegalArgumentException.class, () -> PassportFactory.link("libforeign_link", MissingSymbol.class));
+    }
+
+    @Test
+    void testLinkIsCached() throws Throwable
+    {
+        assertSame(testFL, PassportFactory.link("libforeign_link", TestLink.class));
+
+        MissingSymbol lazy = PassportFactory.linkLazy("libforeign_link", MissingSymbol.class);
+        assertSame(lazy, PassportFactory.linkLazy("libforeign_link", MissingSymbol.class));
+
+        PassportFactory.evict("libforeign_link", MissingSymbol.class);
+        MissingSymbol relinked = PassportFactory.linkLazy("libforeign_link", MissingSymbol.class);
+        assertNotSame(lazy, relinked);
+        assertEquals(4 + 5, relinked.sumD(4, 5));
+    }
+
+    @Test
+    void testClassCacheKey() throws Throwable
+    {
+        // Two builds of one interface that only differ in a method annotation, each loaded with its own copy of
+        // JPassport. The second must not be given the class cached for the first.
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeTrue(compiler != null);
+
+        Path root = Files.createTempDirectory("jpassport_cache_test");
+        Path jpassport = Path.of(Passport.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        String probe = "package cacheprobe; public interface Probe extends jpassport.Passport { %s String mallocString(String s); }";
+        Path freed = compileProbe(compiler, jpassport, root.resolve("freed"), String.format(probe, "@jpassport.annotations.Free"));
+        Path kept = compileProbe(compiler, jpassport, root.resolve("kept"), String.format(probe, ""));
+
+        Path cache = root.resolve("cache");
+        System.setProperty("jpassport.cache.home", cache.toString());
+        try {
+            assertEquals("probe", linkProbe(jpassport, freed));
+            assertEquals("probe", linkProbe(jpassport, kept));
+        }
+        finally {
+            System.clearProperty("jpassport.cache.home");
+        }
+
+        try (var files = Files.list(cache)) {
+            assertEquals(2, files.filter(f -> f.toString().endsWith(".class")).count());
+        }
+        Utils.deleteFolder(root);
+    }
+
+    private static Path compileProbe(JavaCompiler compiler, Path jpassport, Path folder, String source) throws Exception
+    {
+        Path file = folder.resolve("cacheprobe").resolve("Probe.java");
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, source);
+        assertEquals(0, compiler.run(null, null, null, "-cp", jpassport.toString(),
+                "--add-modules", "jdk.incubator.foreign", "-d", folder.toString(), file.toString()));
+        return folder;
+    }
+
+    private static Object linkProbe(Path jpassport, Path probe) throws Exception
+    {
+        URL[] urls = {jpassport.toUri().toURL(), probe.toUri().toURL()};
+        try (URLClassLoader loader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader())) {
+            Class<?> probeClass = loader.loadClass("cacheprobe.Probe");
+            Object linked = loader.loadClass("jpassport.PassportFactory").getMethod("link", String.class, Class.class)
+                    .invoke(null, "libforeign_link", probeClass);
+            return probeClass.getMethod("mallocString", String.class).invoke(linked, "probe");
+        }
+    }
+
+    @Test
+    void testCallArena()
+    {
+        NativeScope arena = CallArena.open();
+        MemorySegment small = arena.allocate(16);
+        // A call made while the arena is in use gets its own arena
+        try (NativeScope nested = CallArena.open()) {
+            assertNotSame(arena, nested);
+        }
+
+        // The arena grows for a large call, the memory already handed out stays valid until it is closed
+        MemorySegment large = arena.allocate(64 * 1024);
+        assertTrue(small.isAlive());
+        assertEquals(64 * 1024, large.byteSize());
+        // Sizes that aren't a power of two are aligned to the largest power of two they contain, up to 8 bytes
+        MemorySegment odd = arena.allocate(40);
+        assertEquals(0, odd.address().toRawLongValue() % 8);
+        MemorySegment six = arena.allocate(6);
+        assertEquals(0, six.address().toRawLongValue() % 2);
+        MemorySegment wide = arena.allocate(24, 16);
+        assertEquals(0, wide.address().toRawLongValue() % 16);
+        arena.close();
+
+        // After that every call reuses the same block
+        long start;
+        try (NativeScope reused = CallArena.open()) {
+            assertSame(arena, reused);
+            start = reused.allocate(64 * 1024).address().toRawLongValue();
+        }
+        try (NativeScope reused = CallArena.open()) {
+            assertEquals(start, reused.allocate(64 * 1024).address().toRawLongValue());
+            assertEquals(64 * 1024, reused.allocatedBytes());
+        }
+
+        // Each call reuses the memory of the thread's arena, calls that need more than it has grow it
+        double[] values = IntStream.range(0, 10000).asDoubleStream().toArray();
+        double expected = IntStream.range(0, 10000).sum();
+        byte[][] bytes = new byte[5][3];
+        for (byte[] row : bytes)
+            Arrays.fill(row, (byte) 1);
+        double[][] doubles = new double[5][3];
+        for (double[] row : doubles)
+            Arrays.fill(row, 1);
+
+        for (TestLink test : allLinks)
+        {
+            assertEquals(expected, test.sumArrD(values, values.length));
+            assertEquals(expected, test.sumArrD(values, values.length));
+            assertEquals(1 + 2 + 3, test.sumArrD(new double[] {1, 2, 3}, 3));
+
+            // Odd sizes are packed, memory after them is still aligned for the types that follow
+            assertEquals(5, test.cstringLength("12345"));
+            assertEquals(15, test.sumMatBPtrPtr(5, 3, bytes));
+            assertEquals(15, test.sumMatDPtrPtr(5, 3, doubles));
+        }
+    }
+
+    public interface OutArgs extends Passport
+    {
+        void readD(@Out double[] d, int set);
+        void readB(@Out(zero = false) byte[] d, byte set);
+        double sumArrD(@In double[] d, int len);
+    }
+
+    public interface InOutArgs extends Passport
+    {
+        void readD(@InOut double[] d, int set);
+    }
+
+    @Test
+    void testArgDirections() throws Throwable
+    {
+        OutArgs outArgs = PassportFactory.link("libforeign_link", OutArgs.class);
+        // Only the first value is written by readD, the rest of the zeroed buffer comes back as 0
+        double[] d = new double[] {1, 2, 3};
+        outArgs.readD(d, 5);
+        assertArrayEquals(new double[] {5, 0, 0}, d);
+
+        byte[] b = new byte[1];
+        outArgs.readB(b, (byte) 7);
+        assertEquals(7, b[0]);
+
+        double[] in = new double[] {1, 2, 3};
+        assertEquals(6, outArgs.sumArrD(in, in.length));
+        assertArrayEquals(new double[] {1, 2, 3}, in);
+
+        InOutArgs inOutArgs = PassportFactory.link("libforeign_link", InOutArgs.class);
+        d = new double[] {1, 2, 3};
+        inOutArgs.readD(d, 5);
+        assertArrayEquals(new double[] {5, 2, 3}, d);
+    }
+
+    public interface Tensors extends Passport
+    {
+        double sumTensorD(int frames, int rows, int cols, double[][][] tensor);
+        double sumJaggedDPtrPtr(int frames, int[] rows, int[] cols, @PtrPtrArg double[][][] tensor);
+    }
+
+    @Test
+    void testTensors() throws Throwable
+    {
+        Tensors tensors = PassportFactory.link("libforeign_link", Tensors.class);
+
+        double[][][] tensor = new double[3][4][5];
+        double correct = 0;
+        for (int ff = 0; ff < 3; ++ff)
+            for (int yy = 0; yy < 4; ++yy)
+                for (int xx = 0; xx < 5; ++xx)
+                {
+                    tensor[ff][yy][xx] = ff * 100 + yy * 10 + xx;
+                    correct += tensor[ff][yy][xx];
+                }
+        assertEquals(correct, tensors.sumTensorD(3, 4, 5, tensor));
+
+        // Each frame has a different number of rows, row yy has yy + 1 values
+        double[][][] jagged = new double[][][] {{{1}}, {{1}, {2, 3}}, {{1}, {2, 3}, {4, 5, 6}}};
+        assertEquals(1 + 6 + 21, tensors.sumJaggedDPtrPtr(3, new int[] {1, 2, 3}, new int[] {1, 2, 3}, jagged));
+
+        tensor[1][2] = new double[2];
+        assertThrows(Error.class, () -> tensors.sumTensorD(3, 4, 5, tensor));
+    }
+
+    public interface Lengths extends Passport
+    {
+        double sumArrD(@Length(1) double[] d, int len);
+        void scaleArrD(@RefArg @Length(value = 1, offset = 3) double[] d, int count, double scale, int offset);
+    }
+
+    @Test
+    void testLengths() throws Throwable
+    {
+        Lengths lengths = PassportFactory.link("libforeign_link", Lengths.class);
+
+        double[] values = IntStream.range(0, 1000).asDoubleStream().toArray();
+        assertEquals(0 + 1 + 2 + 3, lengths.sumArrD(values, 4));
+
+        // Only elements 10 to 14 are copied in and back, the offset is not passed to the library
+        lengths.scaleArrD(values, 5, 2, 10);
+        for (int n = 0; n < values.length; ++n)
+            assertEquals(n >= 10 && n < 15 ? 2 * n : n, values[n]);
+
+        assertThrows(Error.class, () -> lengths.sumArrD(values, values.length + 1));
+    }
+
+    public interface StructArrays extends Passport
+    {
+        double passStructArray(@RefArg TestStruct[] structs, int count);
+    }
+
+    @Test
+    void testStructArrays() throws Throwable
+    {
+        StructArrays structArrays = PassportFactory.link("libforeign_link", StructArrays.class);
+
+        TestStruct[] structs = new TestStruct[1000];
+        double correct = 0;
+        for (int n = 0; n < structs.length; ++n)
+        {
+            structs[n] = new TestStruct(n, 2L * n, 3 * n, 4 * n);
+            correct += 10 * n;
+        }
+
+        assertEquals(correct, structArrays.passStructArray(structs, structs.length));
+
+        // Every element is read back, the C code adds the index to s_int
+        for (int n = 0; n < structs.length; ++n)
+            assertEquals(new TestStruct(2 * n, 2L * n, 3 * n, 4 * n), structs[n]);
+    }
+
+    public interface ArrayMembers extends Passport
+    {
+        double scalePolynomial(@RefArg Polynomial[] poly, double scale);
+    }
+
+    @Test
+    void testArrayInStruct() throws Throwable
+    {
+        ArrayMembers arrayMembers = PassportFactory.link("libforeign_link", ArrayMembers.class);
+
+        double[] coeffs = IntStream.range(0, 16).asDoubleStream().toArray();
+        Polynomial[] poly = new Polynomial[] {new Polynomial(coeffs, 10)};
+
+        assertEquals(2 * IntStream.range(0, 10).sum(), arrayMembers.scalePolynomial(poly, 2));
+        for (int n = 0; n < 16; ++n)
+            assertEquals(n < 10 ? 2 * n : n, poly[0].coeffs()[n]);
+        assertEquals(10, poly[0].n());
+
+        // The array has to match the length in @Array
+        assertThrows(Error.class, () -> arrayMembers.scalePolynomial(new Polynomial[] {new Polynomial(new double[4], 4)}, 2));
+    }
+
+    public record SharedStruct(@Ptr TestStruct first, @Ptr TestStruct second) {}
+
+    public interface PointerGraphs extends Passport
+    {
+        double passShared(@RefArg SharedStruct[] shared);
+    }
+
+    @Test
+    void testSharedPointers() throws Throwable
+    {
+        PointerGraphs graphs = PassportFactory.link("libforeign_link", PointerGraphs.class);
+
+        // Both pointers point at one struct, so the second one sees the change made through the first
+        TestStruct ts = new TestStruct(1, 2, 3, 4);
+        SharedStruct[] shared = new SharedStruct[] {new SharedStruct(ts, ts)};
+        assertEquals(10 + 11, graphs.passShared(shared));
+        assertSame(shared[0].first(), shared[0].second());
+        assertEquals(3, shared[0].first().s_int());
+
+        SharedStruct[] separate = new SharedStruct[] {new SharedStruct(new TestStruct(1, 2, 3, 4), new TestStruct(1, 2, 3, 4))};
+        assertEquals(10 + 10, graphs.passShared(separate));
+        assertNotSame(separate[0].first(), separate[0].second());
+        assertEquals(2, separate[0].second().s_int());
+
+        // null is passed as NULL and read back as null
+        SharedStruct[] single = new SharedStruct[] {new SharedStruct(ts, null)};
+        assertEquals(10, graphs.passShared(single));
+        assertNull(single[0].second());
+    }
+
+    public record Wrapped(TestStruct inner, double extra) {}
+    public record AliasStruct(@Ptr Wrapped outer, @Ptr TestStruct first) {}
+
+    public interface AliasedPointers extends Passport
+    {
+        double aliasFirstMember(@RefArg AliasStruct[] alias);
+    }
+
+    @Test
+    void testAliasedFirstMember() throws Throwable
+    {
+        AliasedPointers aliased = PassportFactory.link("libforeign_link", AliasedPointers.class);
+
+        // The library points first at the first member of outer, the same address is read as two types
+        AliasStruct[] alias = new AliasStruct[] {new AliasStruct(new Wrapped(new TestStruct(1, 2, 3, 4), 5), null)};
+        assertEquals(5, aliased.aliasFirstMember(alias));
+        assertEquals(2, alias[0].outer().inner().s_int());
+        assertEquals(2, alias[0].first().s_int());
+        assertEquals(5, alias[0].outer().extra());
+    }
+
+    public record Node(int v, @Ptr Node next) {}
+
+    public interface LinkedNodes extends Passport
+    {
+        int sumNodes(Node node);
+    }
+
+    @Test
+    void testSelfReferencingRecord() throws Throwable
+    {
+        LinkedNodes nodes = PassportFactory.link("libforeign_link", LinkedNodes.class);
+        assertEquals(1 + 2 + 3, nodes.sumNodes(new Node(1, new Node(2, new Node(3, null)))));
+    }
+
+    public interface CachedRecords extends Passport
+    {
+        double passStruct(@Cached TestStruct s);
+        double scalePolynomial(@Cached Polynomial poly, double scale);
+    }
+
+    public interface BadCache extends Passport
+    {
+        double passComplex(@Cached @RefArg ComplexStruct[] complexStruct);
+    }
+
+    @Test
+    void testCachedRecords() throws Throwable
+    {
+        CachedRecords cached = PassportFactory.link("libforeign_link", CachedRecords.class);
+
+        // The Record is only stored the first time, the same native copy is passed after that
+        TestStruct ts = new TestStruct(2, 3, 4, 5);
+        for (int n = 0; n < 10; ++n)
+            assertEquals(2 + 3 + 4 + 5, cached.passStruct(ts));
+
+        // The library scales the cached native copy, so the next call with the same Record sees the change
+        double[] coeffs = IntStream.range(0, 16).asDoubleStream().toArray();
+        Polynomial poly = new Polynomial(coeffs, 10);
+        assertEquals(2 * IntStream.range(0, 10).sum(), cached.scalePolynomial(poly, 2));
+        assertEquals(4 * IntStream.range(0, 10).sum(), cached.scalePolynomial(poly, 2));
+
+        // Records are found by identity, an equal Record is a new copy
+        assertEquals(2 * IntStream.range(0, 10).sum(), cached.scalePolynomial(new Polynomial(coeffs, 10), 2));
+
+        assertThrows(PassportException.class, () -> PassportFactory.link("libforeign_link", BadCache.class));
+    }
+
+    public record NaturalStruct(int s_int, long s_long, float s_float, double s_double) {}
+    public record WrongPadding(@StructPadding(bytes = 2) int s_int, long s_long, float s_float, double s_double) {}
+
+    public interface StructLayouts extends Passport
+    {
+        double passStruct(NaturalStruct s);
+    }
+
+    public interface WrongLayouts extends Passport
+    {
+        double passStruct(WrongPadding s);
+    }
+
+    @Test
+    void testStructLayout() throws Throwable
+    {
+        // The padding of TestStruct is worked out without @StructPadding
+        StructLayouts layouts = PassportFactory.link("libforeign_link", StructLayouts.class);
+        assertEquals(2 + 3 + 4 + 5, layouts.passStruct(new NaturalStruct(2, 3, 4, 5)));
+
+        assertThrows(PassportException.class, () -> PassportFactory.link("libforeign_link", WrongLayouts.class));
+    }
+
+    @StructMembers({"s_int", "s_long", "s_float", "s_double"})
+    public interface PassingDataView extends Struct
+    {
+        int s_int();
+        void s_int(int v);
+        long s_long();
+        void s_long(long v);
+        float s_float();
+        void s_float(float v);
+        double s_double();
+        void s_double(double v);
+    }
+
+    @StructMembers({"ID", "ts", "tsPtr", "string"})
+    public interface ComplexView extends Struct
+    {
+        int ID();
+        void ID(int v);
+        PassingDataView ts();
+        void ts(PassingDataView v);
+        @Ptr PassingDataView tsPtr();
+        void tsPtr(PassingDataView v);
+        String string();
+    }
+
+    public interface StructViews extends Passport
+    {
+        double passStruct(PassingDataView s);
+        double passComplex(ComplexView complex);
+    }
+
+    public interface ViewArrays extends Passport
+    {
+        double passStructArray(@RefArg PassingDataView[] structs, int count);
+    }
+
+    private static void set(PassingDataView view, int s_int, long s_long, float s_float, double s_double)
+    {
+        view.s_int(s_int);
+        view.s_long(s_long);
+        view.s_float(s_float);
+        view.s_double(s_double);
+    }
+
+    @Test
+    void testStructViews() throws Throwable
+    {
+        StructViews views = PassportFactory.link("libforeign_link", StructViews.class);
+        assertEquals(32, Struct.sizeOf(PassingDataView.class));
+        assertEquals(56, Struct.sizeOf(ComplexView.class));
+
+        try (NativeScope scope = NativeScope.unboundedScope())
+        {
+            PassingDataView simple = Struct.allocate(PassingDataView.class, scope);
+            set(simple, 2, 3, 4, 5);
+            assertEquals(2 + 3 + 4 + 5, views.passStruct(simple));
+
+            ComplexView complex = Struct.allocate(ComplexView.class, scope);
+            // A new struct is all zeros, its String pointer is NULL
+            assertNull(complex.string());
+            PassingDataView ptr = Struct.allocate(PassingDataView.class, scope);
+            complex.ID(55);
+            set(complex.ts(), 1, 2, 3, 4);
+            set(ptr, 5, 6, 7, 8);
+            complex.tsPtr(ptr);
+            // Strings can't be set through a view, string is the last member of the struct
+            MemoryAccess.setAddressAtOffset(complex.segment(), Struct.sizeOf(ComplexView.class) - 8, CLinker.toCString("hello", scope));
+
+            assertEquals(IntStream.range(1, 9).sum(), views.passComplex(complex));
+            // The changes made by the library are seen without reading anything back
+            assertEquals(65, complex.ID());
+            assertEquals(11, complex.ts().s_int());
+            assertEquals(25, complex.tsPtr().s_int());
+            assertEquals(25, ptr.s_int());
+            assertEquals("HELLO", complex.string());
+
+            // A view of a segment that is larger than the struct only copies the struct
+            PassingDataView oversized = Struct.of(PassingDataView.class, scope.allocate(64, 8));
+            set(oversized, 9, 10, 11, 12);
+            complex.ts(oversized);
+            assertEquals(9, complex.ts().s_int());
+            assertEquals(12, complex.ts().s_double());
+            assertEquals(25, complex.tsPtr().s_int());
+
+            // Setting a pointer to null writes NULL, which reads back as null
+            complex.tsPtr(null);
+            assertEquals(MemoryAddress.NULL, MemoryAccess.getAddressAtOffset(complex.segment(), 40));
+            assertNull(complex.tsPtr());
+        }
+    }
+
+    @Test
+    void testViewHolders() throws Throwable
+    {
+        ViewArrays viewArrays = PassportFactory.link("libforeign_link", ViewArrays.class);
+
+        try (NativeScope scope = NativeScope.unboundedScope())
+        {
+            // The same views are used for every call, the results are copied into them instead of new Records
+            PassingDataView[] holders = new PassingDataView[100];
+            // Views of segments larger than the struct only have the struct copied
+            for (int n = 0; n < holders.length; ++n)
+                holders[n] = n % 2 == 0 ? Struct.allocate(PassingDataView.class, scope) : Struct.of(PassingDataView.class, scope.allocate(64, 8));
+
+            for (int call = 0; call < 3; ++call)
+            {
+                double correct = 0;
+                for (int n = 0; n < holders.length; ++n)
+                {
+                    set(holders[n], n, 2L * n, 3 * n, 4 * n);
+                    correct += 10 * n;
+                }
+
+                assertEquals(correct, viewArrays.passStructArray(holders, holders.length));
+                for (int n = 0; n < holders.length; ++n)
+                {
+                    assertEquals(2 * n, holders[n].s_int());
+                    assertEquals(4 * n, holders[n].s_double());
+                }
+            }
+        }
+    }
+
+    public interface Buffers extends Passport
+    {
+        double sumArrD(DoubleBuffer d, int len);
+        long sumArrL(MemorySegment d, long len);
+        void readB(ByteBuffer d, byte set);
+    }
+
+    @Test
+    void testBuffers() throws Throwable
+    {
+        Buffers buffers = PassportFactory.link("libforeign_link", Buffers.class);
+
+        DoubleBuffer d = DoubleBuffer.wrap(new double[] {100, 1, 2, 3});
+        d.position(1);
+        assertEquals(1 + 2 + 3, buffers.sumArrD(d, d.remaining()));
+
+        try (MemorySegment segment = MemorySegment.allocateNative(3 * Long.BYTES))
+        {
+            for (int n = 0; n < 3; ++n)
+                MemoryAccess.setLongAtIndex(segment, n, n + 1);
+            assertEquals(1 + 2 + 3, buffers.sumArrL(segment, 3));
+        }
+
+        // A direct buffer is written by C straight away, a heap buffer is copied back
+        ByteBuffer direct = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+        direct.position(2);
+        buffers.readB(direct, (byte) 9);
+        assertEquals(9, direct.get(2));
+
+        ByteBuffer heap = ByteBuffer.allocate(4);
+        buffers.readB(heap, (byte) 7);
+        assertEquals(7, heap.get(0));
+    }
 }
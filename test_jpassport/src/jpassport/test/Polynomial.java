@@ -0,0 +1,12 @@
+package jpassport.test;
+
+import jpassport.annotations.Array;
+
+/**
+ * This record is meant to match the Polynomial struct in the C code, the coefficients are stored inside the struct.
+ */
+public record Polynomial(
+        @Array(length = 16) double[] coeffs,
+        int n)
+{
+}
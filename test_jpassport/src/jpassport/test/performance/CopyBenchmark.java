@@ -0,0 +1,76 @@
+package jpassport.test.performance;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.NativeScope;
+import jpassport.CallArena;
+import jpassport.Utils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.stream.IntStream;
+
+/**
+ * Measures copying arrays to native memory and back without calling into a library,
+ * this is the work that is done for every array argument.
+ */
+@State(Scope.Benchmark)
+public class CopyBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(CopyBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    @Param({"1024", "16384", "262144", "1048576"})
+    public int array_size;
+
+    public double[] test_arr;
+    public double[][] test_mat;
+
+    @Setup(Level.Trial)
+    public void updateArray()
+    {
+        test_arr = IntStream.range(0, array_size).mapToDouble(i -> i).toArray();
+        test_mat = new double[32][];
+        for (int n = 0; n < test_mat.length; ++n)
+            test_mat[n] = IntStream.range(0, array_size / test_mat.length).mapToDouble(i -> i).toArray();
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public double[] copyInAndBack()
+    {
+        try (NativeScope scope = CallArena.open())
+        {
+            MemorySegment segment = Utils.toMS(scope, test_arr);
+            Utils.toArr(test_arr, segment);
+        }
+        return test_arr;
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public long copy2D()
+    {
+        try (NativeScope scope = CallArena.open())
+        {
+            return Utils.toMS(scope, test_mat).byteSize();
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public long copyPtrPtr()
+    {
+        try (NativeScope scope = CallArena.open())
+        {
+            return Utils.toPtrPTrMS(scope, test_mat).byteSize();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package jpassport.test.performance;
+
+import jpassport.PassportFactory;
+import jpassport.test.TestLink;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many interfaces can be linked per second. Running this with more threads should
+ * show the link throughput going up since links no longer wait on each other.
+ * The linked instance is evicted first so that every link builds a new class instead of returning the
+ * cached one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LinkBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        for (int threads : new int[] {1, 2, 4, 8})
+        {
+            Options opt = new OptionsBuilder()
+                    .include(LinkBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .build();
+
+            new Runner(opt).run();
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, warmups = 1)
+    public Object linkTestLink() throws Throwable
+    {
+        PassportFactory.evict(TestLink.class);
+        return PassportFactory.link("libforeign_link", TestLink.class);
+    }
+
+    @Benchmark
+    @Fork(value = 1, warmups = 1)
+    public Object linkPerfTest() throws Throwable
+    {
+        PassportFactory.evict(PerfTest.class);
+        return PassportFactory.link("libforeign_link", PerfTest.class);
+    }
+
+    @Benchmark
+    @Fork(value = 1, warmups = 1)
+    public Object linkTestLinkCached() throws Throwable
+    {
+        return PassportFactory.link("libforeign_link", TestLink.class);
+    }
+}
@@ -33,7 +33,6 @@ public class PerformanceTest
 
     public static void startup() throws Throwable
     {
-        System.setProperty("jpassport.build.home", "out/testing");
         testFL = PassportFactory.link("libforeign_link", PerfTest.class);
         testJNA =  Native.load("libforeign_link.dll", PerfTest.class);
         testJNADirect =  new TestLinkJNADirect.JNADirect();
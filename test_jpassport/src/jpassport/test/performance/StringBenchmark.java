@@ -0,0 +1,70 @@
+package jpassport.test.performance;
+
+import com.sun.jna.Native;
+import jpassport.PassportFactory;
+import jpassport.test.TestLink;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures passing Strings of different lengths, both plain ASCII and with characters that need to be
+ * encoded as UTF-8.
+ */
+@State(Scope.Benchmark)
+public class StringBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(StringBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    static TestLink testFL;
+    static TestLink testJNA;
+
+    @Param({"8", "64", "512", "4096"})
+    public int string_length;
+
+    public String ascii;
+    public String accented;
+
+    @Setup(Level.Trial)
+    public void updateStrings()
+    {
+        ascii = "a".repeat(string_length);
+        accented = "\u00e9".repeat(string_length);
+    }
+
+    @Setup()
+    public void setUp() throws Throwable
+    {
+        testFL = PassportFactory.link("libforeign_link", TestLink.class);
+        testJNA =  Native.load("libforeign_link.dll", TestLink.class);
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public int asciiJNA()
+    {
+        return testJNA.cstringLength(ascii);
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public int asciiJPassport()
+    {
+        return testFL.cstringLength(ascii);
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public int accentedJPassport()
+    {
+        return testFL.cstringLength(accented);
+    }
+}
@@ -9,6 +9,7 @@ module test.passport {
     requires jmh.core;
     requires jmh.generator.annprocess;
     requires jdk.unsupported;
+    requires java.compiler;
 
     requires commons.csv;
 